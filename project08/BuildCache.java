@@ -0,0 +1,274 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** On-disk cache of build outputs, keyed by a SHA-256 hash of the source
+ *  text and of everything else the output depends on.
+ *  An entry is one file holding one or more text parts, e.g. the .vm code of
+ *  a class and its console output. Entries are written to a temporary file
+ *  and renamed, so concurrent builds never see half an entry.
+ *  Eviction is least recently used: a hit touches the entry, and evict()
+ *  deletes the oldest entries until the cache fits in its size limit.
+ *  Shared by the classes of a parallel build, so the counters are synchronized.
+ *  Entries read or written are also kept in memory, shared by all the builds
+ *  of the JVM, so the builds run by a CompilerDaemon find them resident.
+ */
+public class BuildCache {
+	
+	public final static long MAX_BYTES = 64L << 20;	// default size limit
+	public final static int FORMAT = 1;				// version of the entry file layout, part of every key
+	
+	private final static String EXT = ".entry";
+	private final static long RESIDENT_BYTES = 16L << 20;	// size limit of the entries kept in memory
+	
+	// entries kept in memory by file path, least recently used first
+	private final static LinkedHashMap<String, String[]> resident = new LinkedHashMap<String, String[]>(64, 0.75f, true);
+	private static long residentBytes = 0;
+	
+	private File dir;
+	private long maxBytes;
+	private int hits, misses, evicted;
+	private long bytesRead, bytesWritten;
+	private PrintStream out;			// where errors are reported
+	
+	/** Opens the cache in the given directory, creating it if needed
+	 * @param dir
+	 * @param maxBytes size limit applied by evict()
+	 */
+	public BuildCache(File dir, long maxBytes) {
+		this(dir, maxBytes, System.out);
+	}
+	
+	/** Opens the cache in the given directory, reporting errors to the given stream
+	 * @param dir
+	 * @param maxBytes size limit applied by evict()
+	 * @param out
+	 */
+	public BuildCache(File dir, long maxBytes, PrintStream out) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.out = out;
+		
+		if (!dir.isDirectory() && !dir.mkdirs())
+			out.format("Build cache %s cannot be created.\n", dir);
+	}
+	
+	/** Returns the key of a source: the hex SHA-256 of the source text and
+	 *  of the strings it is built with, e.g. the file name and the options.
+	 *  Each part is hashed with its length first, so parts cannot run into
+	 *  each other.
+	 * @param source
+	 * @param context
+	 * @return String 64 hex digits
+	 */
+	public static String key(byte[] source, String... context) {
+		MessageDigest md;
+		StringBuilder hex = new StringBuilder(64);
+		
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);		// every Java platform has SHA-256
+		}
+		
+		update(md, ("BuildCache " + FORMAT).getBytes(StandardCharsets.UTF_8));
+		for (String s : context)
+			update(md, s.getBytes(StandardCharsets.UTF_8));
+		update(md, source);
+		
+		for (byte b : md.digest())
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+	
+	private static void update(MessageDigest md, byte[] part) {
+		int n = part.length;
+		
+		md.update(new byte[] { (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n });
+		md.update(part);
+	}
+	
+	/** Looks up an entry, and marks it as recently used
+	 * @param key
+	 * @return the parts of the entry, null on a miss
+	 */
+	public String[] get(String key) {
+		File fl = new File(dir, key + EXT);
+		String[] parts = recall(fl.getAbsolutePath());
+		
+		if (parts != null) {
+			fl.setLastModified(System.currentTimeMillis());
+			count(true, 0);
+			return parts;
+		}
+		
+		try {
+			byte[] data = Files.readAllBytes(fl.toPath());
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			
+			parts = new String[length(in)];
+			for (int i = 0; i < parts.length; i++) {
+				byte[] part = new byte[length(in)];
+				in.readFully(part);
+				parts[i] = new String(part, StandardCharsets.UTF_8);
+			}
+			
+			fl.setLastModified(System.currentTimeMillis());
+			count(true, data.length);
+			remember(fl.getAbsolutePath(), parts);
+			return parts;
+			
+		} catch (IOException e) {
+			count(false, 0);		// not cached, unreadable or corrupt, which is treated the same
+			return null;
+		}
+	}
+	
+	/** Reads a count or length of an entry, checking it against the bytes left
+	 * @param in
+	 * @return int
+	 * @throws IOException if the entry is corrupt
+	 */
+	private static int length(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		
+		if (n < 0 || n > in.available())
+			throw new IOException("corrupt build cache entry");
+		return n;
+	}
+	
+	/** Stores an entry, replacing any entry of the same key
+	 * @param key
+	 * @param parts
+	 */
+	public void put(String key, String... parts) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(buf);
+		File tmp = null;
+		File fl = new File(dir, key + EXT);
+		
+		try {
+			data.writeInt(parts.length);
+			for (String part : parts) {
+				byte[] b = part.getBytes(StandardCharsets.UTF_8);
+				data.writeInt(b.length);
+				data.write(b);
+			}
+			data.flush();
+			
+			tmp = File.createTempFile(key, ".tmp", dir);
+			Files.write(tmp.toPath(), buf.toByteArray());
+			Files.move(tmp.toPath(), fl.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			remember(fl.getAbsolutePath(), parts);
+			
+			synchronized (this) {
+				bytesWritten += buf.size();
+			}
+		} catch (IOException e) {
+			e.printStackTrace(out);
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+	
+	/** Deletes the least recently used entries until the cache is no larger
+	 *  than its size limit
+	 */
+	public synchronized void evict() {
+		File[] entries = dir.listFiles((d, name) -> name.endsWith(EXT));
+		long[] times, lengths;
+		Integer[] order;
+		long size = 0;
+		
+		if (entries == null)
+			return;
+		
+		// the times are read once, since other builds touch entries while this one sorts
+		times   = new long[entries.length];
+		lengths = new long[entries.length];
+		order   = new Integer[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			times[i]   = entries[i].lastModified();
+			lengths[i] = entries[i].length();
+			order[i]   = i;
+			size += lengths[i];
+		}
+		
+		Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+		
+		for (int k = 0; k < order.length && size > maxBytes; k++) {
+			int i = order[k];
+			
+			if (entries[i].delete()) {
+				size -= lengths[i];
+				evicted++;
+			}
+		}
+	}
+	
+	/** Returns an entry kept in memory, null if there is none
+	 * @param path entry file
+	 * @return String[]
+	 */
+	private static synchronized String[] recall(String path) {
+		return resident.get(path);
+	}
+	
+	/** Keeps an entry in memory, dropping the least recently used entries
+	 *  beyond RESIDENT_BYTES. An entry's key is the hash of its contents'
+	 *  inputs, so a kept entry stays valid even if its file is evicted.
+	 * @param path entry file
+	 * @param parts
+	 */
+	private static synchronized void remember(String path, String[] parts) {
+		Iterator<Map.Entry<String, String[]>> oldest;
+		String[] old = resident.put(path, parts);
+		
+		residentBytes += size(parts) - (old != null ? size(old) : 0);
+		
+		for (oldest = resident.entrySet().iterator(); residentBytes > RESIDENT_BYTES && oldest.hasNext(); ) {
+			residentBytes -= size(oldest.next().getValue());
+			oldest.remove();
+		}
+	}
+	
+	private static long size(String[] parts) {
+		long n = 0;
+		
+		for (String part : parts)
+			n += part.length();
+		return n;
+	}
+	
+	private synchronized void count(boolean hit, long bytes) {
+		if (hit) {
+			hits++;
+			bytesRead += bytes;
+		}
+		else
+			misses++;
+	}
+	
+	/** Returns the cache statistics of this run
+	 * @return String
+	 */
+	public synchronized String stats() {
+		return String.format("Build cache %s: %d hits, %d misses, %d bytes read, %d bytes written, %d evicted",
+				dir, hits, misses, bytesRead, bytesWritten, evicted);
+	}
+}
@@ -1,6 +1,7 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 
 public class CodeWriter {
 	private FileWriter fw;
@@ -8,17 +9,29 @@ public class CodeWriter {
 	private String commentStr = "";
 	private String currentFile = "";
 	private String currentFn = "";	// current function name
-	private int label  = 0;			// unique label for jump location. Increments each time it's called.
-	private int rLabel = 0;			// unique label for fn return. Increments each time it's called.
+	private String filePrefix = "";	// prefix of generated labels, unique to the current file
+	private int label  = 0;			// unique label for jump location in the file. Increments each time it's called.
+	private int rLabel = 0;			// unique label for fn return in the file. Increments each time it's called.
+	private String pendingCmp = null;	// eq, gt or lt held back until the next command is known
+	private int pendingNots = 0;		// no. of not commands held back after pendingCmp
+	private StringBuilder fragment = null;	// code of the current file, kept while capturing
+	private PrintStream out = System.out;	// where I/O errors are reported
 	
 	public CodeWriter(String filename) {
+		this(filename, System.out);
+	}
+	
+	public CodeWriter(String filename, PrintStream out) {
+		// Opens the output file, reporting I/O errors to the given stream.
+		this.out = out;
+		
 		try 
 		{
 			File fl = new File(filename);
 			fw = new FileWriter(fl);
 		}
 		catch (IOException  e) { 
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 	
@@ -26,7 +39,40 @@ public class CodeWriter {
 		// Writes to the output file the assembly code that implements
 		// the given arithmetic command.
 		// add, sub, neg, eq, gt, lt, and, or, not
+		// A comparison and the nots after it are held back: if an if-goto
+		// follows, writeIf jumps on the comparison without pushing a boolean.
+		
+		switch (command) {
+		case "eq" : case "gt" : case "lt" :
+			flushPending();
+			pendingCmp = command;
+			break;
+		
+		case "not" :
+			pendingNots++;
+			break;
+		
+		default :
+			flushPending();
+			emitArithmetic(command);
+			break;
+		}
+	}
+	
+	private void flushPending() {
+		// Writes the comparison and nots held back by writeArithmetic.
+		// Two nots cancel out.
+		
+		if (pendingCmp != null)
+			emitArithmetic(pendingCmp);
+		if (pendingNots % 2 == 1)
+			emitArithmetic("not");
 		
+		pendingCmp  = null;
+		pendingNots = 0;
+	}
+	
+	private void emitArithmetic(String command) {
 		int label1;
 		sb = new StringBuilder();
 		sb.append("// " + command  + "\n");
@@ -54,26 +100,26 @@ public class CodeWriter {
 				
 				sb.append("D=M-D" 	+ '\n');	// store result of 2nd - 1st value
 				
-				sb.append("@True" + label1 + '\n');	
+				sb.append("@" + filePrefix + "True" + label1 + '\n');	
 				// if eq, then D=0 jump to label1 
 				if (command.equals("eq"))
-					sb.append("D, JEQ" 	+ '\n');
+					sb.append("D; JEQ" 	+ '\n');
 				else if (command.equals("gt"))
-					sb.append("D, JGT" 	+ '\n');
+					sb.append("D; JGT" 	+ '\n');
 				else if (command.equals("lt"))
-					sb.append("D, JLT" 	+ '\n');
+					sb.append("D; JLT" 	+ '\n');
 				
 				sb.append("@SP"					+ '\n');
 				sb.append("A=M-1"				+ '\n');
 				sb.append("M=0"					+ '\n');		// store false (0) in SP
-				sb.append("@Continue" + label1	+ '\n');
+				sb.append("@" + filePrefix + "Continue" + label1 + '\n');
 				sb.append("0; JMP"				+ '\n');
 				
-				sb.append("(True" + label1		+ ")\n");	// Label True
+				sb.append("(" + filePrefix + "True" + label1 + ")\n");	// Label True
 				sb.append("@SP"					+ '\n');
 				sb.append("A=M-1"				+ '\n');
 				sb.append("M=-1"				+ '\n');		// store true (-1) in SP
-				sb.append("(Continue" + label1	+ ")\n");	// Label Continue
+				sb.append("(" + filePrefix + "Continue" + label1 + ")\n");	// Label Continue
 				break;
 				
 			case "and" :
@@ -109,6 +155,7 @@ public class CodeWriter {
 		// Writes to the output file the assembly code that implements
 		// the given command, where command is either C_PUSH or C_POP.
 		// pop segment i, push segment i
+		flushPending();
 		commentStr = "// " + command + " " + segment + " " + index + "\n";
 		
 		switch (command) {
@@ -157,7 +204,15 @@ public class CodeWriter {
 	public void setFileName(String fileName) {
 		// Informs the codeWriter that the translation of a new VM file
 		// has started (called by the main program of the VM translator).
+		// Generated labels are numbered from 0 again in each file, behind a
+		// prefix of the file name, so the code of a file does not depend on
+		// the files before it and can be cached on its own.
+		flushPending();
 		this.currentFile = fileName;
+		this.currentFn   = "";
+		filePrefix = fileName.split("\\.")[0] + "$";
+		label  = 0;
+		rLabel = 0;
 	}
 	
 	public void writeInit() {
@@ -198,6 +253,7 @@ public class CodeWriter {
 	
 	public void writeLabel(String label) {
 		// Writes assembly code that effects the label command.
+		flushPending();
 		String retLabel = getLabel(label);
 		
 		sb = new StringBuilder();
@@ -209,6 +265,7 @@ public class CodeWriter {
 	
 	public void writeGoto(String label) {
 		// Writes assembly code that effects the goto command.
+		flushPending();
 		String retLabel = getLabel(label);
 		
 		sb = new StringBuilder();		
@@ -222,26 +279,67 @@ public class CodeWriter {
 	public void writeIf(String label) {
 		// Writes assembly code that effects the if-goto command.
 		// If condition != 0 goto label
+		// A held back comparison jumps on x-y directly, the same test eq/gt/lt
+		// make, with an odd no. of nots inverting the jump. A lone not jumps
+		// unless the value is -1, as not x != 0 does.
 		String retLabel = getLabel(label);
+		boolean negate  = (pendingNots % 2 == 1);
+		String cmp 		= pendingCmp;
+		
+		pendingCmp  = null;
+		pendingNots = 0;
 		
 		sb = new StringBuilder();
-		sb.append("// if-goto " + retLabel + '\n');
+		
+		if (cmp != null) {
+			sb.append("// " + cmp + (negate ? " not" : "") + " if-goto " + retLabel + '\n');
+			
+			sb.append("@SP"				+ '\n');
+			sb.append("AM=M-1"			+ '\n');	// SP--
+			sb.append("D=M"				+ '\n');	// D = y
+			sb.append("@SP"				+ '\n');
+			sb.append("AM=M-1"			+ '\n');	// SP--
+			sb.append("D=M-D"			+ '\n');	// D = x - y
+			sb.append("@" + retLabel	+ '\n');
+			sb.append("D; " + jumpOf(cmp, negate) + '\n');
+			writeFile();
+			return;
+		}
+		
+		sb.append("// " + (negate ? "not " : "") + "if-goto " + retLabel + '\n');
 		
 		sb.append("@SP"				+ '\n');
 		sb.append("AM=M-1"			+ '\n');	// SP--
-		sb.append("D=M"				+ '\n');	// D = *SP. D=-1 if true
+		if (negate)
+			sb.append("D=M+1"		+ '\n');	// D = 0 if *SP = -1, so that not *SP = 0
+		else
+			sb.append("D=M"			+ '\n');	// D = *SP. D=-1 if true
 		sb.append("@" + retLabel	+ '\n');
 		sb.append("D; JNE"			+ '\n');
 		writeFile();
 	}
 	
+	private String jumpOf(String cmp, boolean negate) {
+		// Returns the jump on x-y that is taken when the comparison is true,
+		// or when it is false if negate is set.
+		switch (cmp) {
+		case "eq" :
+			return negate ? "JNE" : "JEQ";
+		case "gt" :
+			return negate ? "JLE" : "JGT";
+		default :
+			return negate ? "JGE" : "JLT";
+		}
+	}
+	
 	private String getLabel(String label) {
 		return currentFn + "$" + label;
 	}
 	
 	public void writeFunction(String functionName, int numVars) {
 		// Writes assembly code that effects the function command.
-		int label1;		// use unique global label and increment
+		flushPending();
+		int label1;		// use unique label of the file and increment
 		String fnLbl  = functionName;
 		
 		currentFn = functionName;	// update global fn name for use in label
@@ -251,19 +349,19 @@ public class CodeWriter {
 		sb.append("(" + fnLbl 	+ ")\n");	// declares label for function entry point
 		
 		if (numVars>0) {
-			label1 = label++;					// use unique global label and increment
+			label1 = label++;					// use unique label of the file and increment
 			sb.append("@" + numVars + '\n');	// no. of local variables
 			sb.append("D=A"			+ '\n');	// D = nVars
 			
 			// pushes local variables initialized to 0
-			sb.append("(Loop" + label1	+ ")\n");
+			sb.append("(" + filePrefix + "Loop" + label1 + ")\n");
 			sb.append("@SP"				+ '\n');
 			sb.append("A=M"				+ '\n');
 			sb.append("M=0"				+ '\n');	// push 0
 			sb.append("@SP"				+ '\n');
 			sb.append("M=M+1"			+ '\n');	// SP++
 			sb.append("D=D-1"			+ '\n');	// D--
-			sb.append("@Loop" + label1	+ '\n');	// global label variable which auto increments
+			sb.append("@" + filePrefix + "Loop" + label1 + '\n');	// label variable which auto increments
 			sb.append("D; JGT"			+ '\n');		
 		}
 		else
@@ -273,8 +371,9 @@ public class CodeWriter {
 	
 	public void writeCall(String functionName, int numArgs) {
 		// Writes assembly code that effects the call command.
+		flushPending();
 		String fnLbl  = functionName;
-		String retLbl = functionName + "$ret." + rLabel++;
+		String retLbl = functionName + "$ret." + filePrefix + rLabel++;
 		
 		sb = new StringBuilder();
 		sb.append("// call " + functionName + " " + numArgs + "\n");
@@ -338,6 +437,7 @@ public class CodeWriter {
 	
 	public void writeReturn() {
 		// Writes assembly code that effects the return command.
+		flushPending();
 		
 		sb = new StringBuilder();
 		sb.append("// return\n");
@@ -553,23 +653,55 @@ public class CodeWriter {
 		return str;
 	}
 	
+	/** Starts capturing the code written, e.g. the code of one file for the build cache
+	 */
+	public void startFragment() {
+		flushPending();
+		fragment = new StringBuilder();
+	}
+	
+	/** Ends capturing the code written
+	 * @return String the code written since startFragment()
+	 */
+	public String endFragment() {
+		flushPending();
+		String code = fragment.toString();
+		
+		fragment = null;
+		return code;
+	}
+	
+	/** Writes code captured in an earlier run, in place of translating its file
+	 * @param code
+	 */
+	public void writeFragment(String code) {
+		flushPending();
+		sb = new StringBuilder(code);
+		writeFile();
+	}
+	
 	private void writeFile() {
 		// output to file
+		if (fragment != null)
+			fragment.append(sb);
+		
 		try {
 			fw.write(sb.toString());
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 	
 	public void Close() {
 		// Closes the output file
+		flushPending();
+		
 		try {
 			fw.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 }
\ No newline at end of file
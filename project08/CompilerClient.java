@@ -0,0 +1,107 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/** Thin launcher for the CompilerDaemon. Sends its command line to the
+ *  daemon and prints the reply, so a build costs a socket round trip and a
+ *  warm build instead of a JVM start. It loads none of the compiler itself,
+ *  unless no daemon is running, when the tool is run here as a plain build.
+ *
+ *  java CompilerClient [-port=n] JackCompiler [options] <filename.jack or dirname>
+ *  java CompilerClient [-port=n] -stop
+ */
+public class CompilerClient {
+	
+	public static void main(String[] args) {
+		int port = CompilerDaemon.PORT;
+		int first = 0;
+		
+		if (args.length > 0 && args[0].startsWith("-port=")) {
+			port = Integer.parseInt(args[0].substring(6));
+			first = 1;
+		}
+		
+		if (first == args.length) {
+			System.err.println("Usage: java CompilerClient [-port=n] <tool> [args]");
+			System.err.println("       java CompilerClient [-port=n] " + CompilerDaemon.STOP);
+			System.exit(-1);
+		}
+		
+		String tool = args[first];
+		String[] toolArgs = new String[args.length - first - 1];
+		System.arraycopy(args, first + 1, toolArgs, 0, toolArgs.length);
+		
+		int status;
+		
+		try {
+			status = send(port, tool, toolArgs);
+		} catch (ConnectException e) {
+			if (tool.equals(CompilerDaemon.STOP)) {
+				System.out.format("No compiler daemon on port %d\n", port);
+				return;
+			}
+			status = CompilerDaemon.run(tool, toolArgs, System.out);	// no daemon, build in this JVM
+		} catch (IOException e) {
+			e.printStackTrace();
+			status = -1;
+		}
+		
+		if (status != 0)
+			System.exit(status);
+	}
+	
+	/** Reads the token of the daemon on the given port, which only the
+	 *  user who started it can read
+	 * @param port
+	 * @return String, empty if it cannot be read
+	 */
+	private static String readToken(int port) {
+		try {
+			return new String(Files.readAllBytes(CompilerDaemon.tokenFile(port).toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return "";
+		}
+	}
+	
+	/** Sends one request to the daemon and prints its output
+	 * @param port
+	 * @param tool
+	 * @param args
+	 * @return int exit status of the tool
+	 * @throws IOException ConnectException if no daemon is listening
+	 */
+	private static int send(int port, String tool, String[] args) throws IOException {
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			DataOutputStream req = new DataOutputStream(s.getOutputStream());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			
+			req.writeUTF(readToken(port));
+			req.flush();
+			
+			if (in.readInt() == CompilerDaemon.REFUSED) {
+				System.out.println("Compiler daemon refused the request: token not readable or out of date");
+				return -1;
+			}
+			
+			req.writeUTF(tool);
+			req.writeUTF(System.getProperty("user.dir"));
+			req.writeInt(args.length);
+			for (String arg : args)
+				req.writeUTF(arg);
+			req.flush();
+			
+			int status = in.readInt();
+			byte[] output = new byte[in.readInt()];
+			in.readFully(output);
+			
+			System.out.write(output);
+			System.out.flush();
+			return status;
+		}
+	}
+}
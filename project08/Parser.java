@@ -1,39 +1,41 @@
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.PrintStream;
 import java.nio.file.NoSuchFileException;
-import java.nio.file.Paths;
-import java.util.Iterator;
-import java.util.stream.Stream;
 
 public class Parser {
-	private Stream<String> stream;
-	private Iterator<String> st;
-	private String currentLine;
+	private SourceBuffer src;
+	private int pos = 0;		// offset of the next unread line in src
 	private String currentCmd;
+	private String currentArg1;
+	private int currentArg2;
 	
 	public Parser(String filename) {
+		this(filename, System.out);
+	}
+	
+	public Parser(String filename, PrintStream out) {
 		// Opens the input file/stream and gets ready to parse it.
+		// The file is memory mapped and scanned in place, one command at a time.
+		// Errors are reported to the given stream.
 
 		try {
-			stream = Files
-					.lines(Paths.get(filename))
-					.filter(p -> !p.matches("^(\\s*|//.*)$"));
+			src = new SourceBuffer(filename);
 
 		} catch (NoSuchFileException e) {
-			System.out.println("File not found.");
-			e.printStackTrace();
+			out.println("File not found.");
+			e.printStackTrace(out);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
-
-		st = stream.iterator();
 	}
 	
 	public boolean hasMoreCommands() {
 		// Checks whether there are more commands in the input
 		
-		if (st.hasNext())
+		skipBlankLines();
+		
+		if (src != null && pos < src.length())
 			return true;
 		else 
 			return false;
@@ -43,16 +45,42 @@ public class Parser {
 		// Reads the next command from the input and makes it the current command. 
 		// Should be called only if hasMoreCommands() is true.
 		// Initially there is no current command.
-		String c = null;
+		// Splits the command into up to 3 fields; a trailing comment ends the command.
+		int n = src.length();
+		int field = 0;
+		int start;
+		
+		if (!hasMoreCommands())
+			return;
+		
+		currentCmd  = null;
+		currentArg1 = null;
+		currentArg2 = -1;
 		
-		if (hasMoreCommands()) {
-			c = st.next();
-			// removes comments
-	    	if (c.contains("//"))
-	    		c = c.substring(0, c.indexOf("//")).trim();
+		while (pos < n && src.charAt(pos) != '\n' && !isComment(pos)) {
+			if (isBlank(src.charAt(pos))) {
+				pos++;
+				continue;
+			}
+			
+			start = pos;
+			while (pos < n && !isBlank(src.charAt(pos)) && src.charAt(pos) != '\n' && !isComment(pos))
+				pos++;
+			
+			switch (field++) {
+			case 0 :
+				currentCmd = src.substring(start, pos);
+				break;
+			case 1 :
+				currentArg1 = src.substring(start, pos);
+				break;
+			case 2 :
+				currentArg2 = parseInt(start, pos);
+				break;
+			}
 		}
-    	currentLine = c;
-		currentCmd = currentLine.split("\\s+", 3)[0];
+		
+		skipLine();
 	}
 	
 	public String commandType() {
@@ -72,12 +100,12 @@ public class Parser {
 		// In the case of C_ARITHMETIC, the command itself (add, sub, etc.) is returned.
 		// Should not be called if the current command is C_RETURN.
 		
-		String arg = null;
-		String[] c = currentLine.split("\\s+");
-		
-		if (c[0] != "return" && c[0].matches("push|pop|label|if-goto|goto|function|call"))
-			arg = c[1].trim();
-		return arg;
+		switch (currentCmd) {
+		case "push" : case "pop" : case "label" : case "if-goto" : case "goto" : case "function" : case "call" :
+			return currentArg1;
+		default :
+			return null;
+		}
 	}
 	
 	public int arg2() {
@@ -86,12 +114,64 @@ public class Parser {
 		// C_PUSH, C_POP, C_FUNCTION, or C_CALL.
 		// return -1 if there is no second argument.
 		
-		int arg = -1;
-		String[] c = currentLine.split("\\s+");
+		switch (currentCmd) {
+		case "push" : case "pop" : case "function" : case "call" :
+			return currentArg2;
+		default :
+			return -1;
+		}
+	}
+	
+	private void skipBlankLines() {
+		// Moves pos over white space, empty lines and whole line comments.
+		int n = (src == null) ? 0 : src.length();
 		
-		if (c[0].matches("push|pop|function|call"))
-			arg = Integer.parseInt(c[2].trim());
-		return arg;
+		while (pos < n) {
+			if (isBlank(src.charAt(pos)) || src.charAt(pos) == '\n')
+				pos++;
+			else if (isComment(pos))
+				skipLine();
+			else
+				break;
+		}
+	}
+	
+	private void skipLine() {
+		// Moves pos to the start of the next line.
+		int n = src.length();
+		
+		while (pos < n && src.charAt(pos) != '\n')
+			pos++;
+		if (pos < n)
+			pos++;
+	}
+	
+	private boolean isComment(int i) {
+		return src.charAt(i) == '/' && i + 1 < src.length() && src.charAt(i + 1) == '/';
+	}
+	
+	private static boolean isBlank(char c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+	
+	private int parseInt(int start, int end) {
+		// Parses a decimal integer field without creating a String.
+		// The field must be digits only, with no sign, and at most 32767,
+		// the largest VM constant; anything else throws NumberFormatException.
+		int val = 0;
+		
+		if (start == end)
+			throw new NumberFormatException("For input string: \"\"");
+		for (int i = start; i < end; i++) {
+			char c = src.charAt(i);
+			
+			if (c < '0' || c > '9')
+				throw new NumberFormatException("For input string: \"" + src.substring(start, end) + "\"");
+			val = val * 10 + (c - '0');
+			if (val > 32767)
+				throw new NumberFormatException("Value out of range 0..32767: \"" + src.substring(start, end) + "\"");
+		}
+		return val;
 	}
 	
 	private String getCmdType(String s) {
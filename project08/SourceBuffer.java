@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** Read-only view of a source file mapped into memory.
+ *  Jack and VM sources are plain ASCII, so each byte is one character.
+ *  The file is never copied onto the heap; only the text of the tokens
+ *  asked for through substring() becomes a String.
+ */
+public class SourceBuffer implements CharSequence {
+	
+	private final ByteBuffer buf;
+	
+	/** Maps the given file into memory for reading.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public SourceBuffer(String filename) throws IOException {
+		
+		try (FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+	}
+	
+	/** Wraps source text that is already in memory.
+	 * @param buf
+	 */
+	public SourceBuffer(ByteBuffer buf) {
+		this.buf = buf;
+	}
+	
+	/** Returns the no. of characters in the source
+	 * @return int
+	 */
+	public int length() {
+		return buf.limit();
+	}
+	
+	/** Returns the character at index i
+	 * @param i
+	 * @return char
+	 */
+	public char charAt(int i) {
+		return (char) (buf.get(i) & 0xff);
+	}
+	
+	/** Returns the raw byte at index i
+	 * @param i
+	 * @return byte
+	 */
+	public byte byteAt(int i) {
+		return buf.get(i);
+	}
+	
+	/** Returns the characters from start to end (exclusive) as a String
+	 * @param start
+	 * @param end
+	 * @return String
+	 */
+	public String substring(int start, int end) {
+		char[] c = new char[end - start];
+		
+		for (int i = start; i < end; i++)
+			c[i - start] = (char) (buf.get(i) & 0xff);
+		
+		return new String(c);
+	}
+	
+	public CharSequence subSequence(int start, int end) {
+		return substring(start, end);
+	}
+	
+	public String toString() {
+		return substring(0, length());
+	}
+}
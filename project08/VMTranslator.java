@@ -1,18 +1,64 @@
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
 
 public class VMTranslator {
+	
+	// version of the generated asm, part of every build cache key. Increase it
+	// when a change to the translator changes its output, so that older entries are not reused
+	public final static int OUTPUT_VERSION = 1;
+	
+	private BuildCache cache = null;		// null unless -cache
+	private PrintStream out;				// console output of the run
+	
+	private VMTranslator(PrintStream out) {
+		this.out = out;
+	}
 
 	public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java VMTranslator <filename.vm>");
-            System.exit(-1);
+		int status = run(args, System.out, System.err);
+		
+		if (status != 0)
+			System.exit(status);
+	}
+	
+	/** Runs one translation with the given command line. Each run has its
+	 *  own code writer and cache, so runs can share one JVM, as in the CompilerDaemon.
+	 * @param args command line
+	 * @param out console output
+	 * @param err usage message
+	 * @return int exit status, -1 for a usage error
+	 */
+	public static int run(String[] args, PrintStream out, PrintStream err) {
+		return new VMTranslator(out).translate(args, err);
+	}
+	
+	private int translate(String[] args, PrintStream err) {
+        String path 		= null;
+        String cacheDir		= null;
+        
+        for (String arg : args) {
+        	if (arg.equals("-cache"))
+        		cacheDir = "";
+        	else if (arg.startsWith("-cache="))
+        		cacheDir = arg.substring(7);
+        	else if (path == null && !arg.startsWith("-"))
+        		path = arg;
+        	else
+        		path = null;
+        }
+        
+        if (path == null || args.length > 2) {
+            err.println("Usage: java VMTranslator <filename.vm> [-cache[=dir]]");
+            err.println("  -cache      reuse the code of unchanged files, cached in <dir>/.vmcache");
+            err.println("  -cache=dir  cache in the given directory");
+            return -1;
         }
         
 		CodeWriter cw 		= null;
-        String path 		= args[0];
         String fileName		= null;
 		File file 			= new File(path);
 		
@@ -27,15 +73,24 @@ public class VMTranslator {
         	else {
         		fileName = file.getPath().substring(0, file.getPath().lastIndexOf(".")) + ".asm";
         	}
-    		cw = new CodeWriter(fileName);
-        	System.out.format("Output asm file written to %s\n", fileName);
+    		cw = new CodeWriter(fileName, out);
+    		
+    		if (cacheDir != null) {
+    			if (!cacheDir.isEmpty())
+    				cache = new BuildCache(new File(cacheDir), BuildCache.MAX_BYTES, out);
+    			else if (isDirectory)
+    				cache = new BuildCache(new File(file, ".vmcache"), BuildCache.MAX_BYTES, out);
+    			else
+    				cache = new BuildCache(new File(file.getAbsoluteFile().getParentFile(), ".vmcache"), BuildCache.MAX_BYTES, out);
+    		}
+        	out.format("Output asm file written to %s\n", fileName);
 
         	if (isDirectory) {
         		File[] directoryListing = file.listFiles();
         		if (directoryListing != null) {
             		for(File child : directoryListing) {
             			if (child.getName().equals("Sys.vm") && FindSysInit(child)) {
-            				System.out.println("Found Sys.vm & function Sys.init 0. Bootstrap included.");
+            				out.println("Found Sys.vm & function Sys.init 0. Bootstrap included.");
                        		// write bootstrap code to beginning of .asm file
                     		cw.writeInit();
             				break;
@@ -52,36 +107,66 @@ public class VMTranslator {
         	}
         	
     		cw.Close();
+    		
+    		if (cache != null) {
+    			cache.evict();
+    			out.println(cache.stats());
+    		}
         }
         else
-        	System.out.println("File does not exist.");
+        	out.println("File does not exist.");
+        
+        return 0;
 	}
 	
-	private static boolean FindSysInit(File file) {
-		BufferedReader br = null;
+	private boolean FindSysInit(File file) {
 		String str = "^(function\\sSys\\.init\\s0)$";
 		
-		try {
-			br = new BufferedReader(new FileReader(file));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+		// closed when done, a daemon would otherwise leak a file handle per run
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+			return (br.lines().filter(p -> p.matches(str)).count() != 0);
+		} catch (IOException e) {
+			e.printStackTrace(out);
 		}
-
-		return (br.lines().filter(p -> p.matches(str)).count() != 0);
+		return false;
 	}
 	
-	private static void ProcessFile(File file, CodeWriter cw) {
+	private void ProcessFile(File file, CodeWriter cw) {
 		String 	filePath = file.getPath();
 		String 	ext 	 = filePath.substring(filePath.lastIndexOf(".") + 1);
 		
 		if (!ext.toLowerCase().equals("vm")) return;
 		
-		// parse input filename.vm
-		Parser parse = new Parser(filePath);
-		
 		// informs that the translation of new VM file has started
 		cw.setFileName(file.getName());
 		
+		if (cache == null) {
+			Translate(filePath, cw);
+			return;
+		}
+		
+		// the code of a file depends only on its text and name,
+		// so an unchanged file is written from the cache without parsing
+		try {
+			String key = BuildCache.key(Files.readAllBytes(file.toPath()), file.getName(), "VMTranslator " + OUTPUT_VERSION);
+			String[] entry = cache.get(key);
+			
+			if (entry != null)
+				cw.writeFragment(entry[0]);
+			else {
+				cw.startFragment();
+				Translate(filePath, cw);
+				cache.put(key, cw.endFragment());
+			}
+		} catch (IOException e) {
+			e.printStackTrace(out);
+		}
+	}
+	
+	private void Translate(String filePath, CodeWriter cw) {
+		// parse input filename.vm
+		Parser parse = new Parser(filePath, out);
+		
 		// process each line
 		while (parse.hasMoreCommands()) {
 			parse.advance();
@@ -1,26 +1,42 @@
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Arrays;
 
 public class CompilationEngine {
 	private JackTokenizer jt	= null;
 	private SymbolTable   st	= null;
 	private VMWriter	  vw	= null;
-	private FileWriter    fw 	= null;
+	private NameTable	  names	= null;		// name ids used by jt, st and vw
+	private IRTree		  ir	= null;		// the class as parsed, lowered to VM code at the end
+	private CompilerOptions options;
+	private PrintStream   out	= null;		// console diagnostics
+	private SubroutineIndex index = null;	// signatures of the program with -whole, null if not known
+	private Writer		  fw 	= null;		// filename.xml parse tree, null when not written
 	private int indent			= 0;		// xml output indentation
-	private int lblNo			= 0;		// class level unique label no. Auto-increment
-	private int expList			= 0;		// no. of ',' separated expressions in subroutine call
+	private String[] indents	= new String[16];	// indents[n], the xml indentation of level n
+	private String[] indentsD	= new String[16];	// indentD() of level n
 	private boolean debug		= true;		// turns on console debugging output
-	private String objName;
-	private String className;
-	private String subKeyWord;
-	private String subName;
-	private String subType;
-	private String tokenKind;
-	private String tokenType;
-	private String term			= null;
+	private int root			= -1;		// CLASS node
+	private int className;					// name ids
+	private int subKind;					// CONSTRUCTOR, FUNCTION or METHOD
+	private int subName;
+	private int subType;
+	private SymbolTable.Kind tokenKind;
+	private int tokenType;
+	
+	// what writeNameAdv() expects
+	private final static int IDENT	= 1;	// identifier
+	private final static int TYPE	= 2;	// int, char, boolean, void or className
+	private final static int TYPE2	= 3;	// int, char, boolean or className
+	
+	// how checkCall() is called
+	private final static int SELF	= 1;	// subroutineName()
+	private final static int OBJECT	= 2;	// varName.subroutineName()
+	private final static int CLASS	= 3;	// className.subroutineName()
 	
 	private final String ANSI_RESET 	= "\u001B[0m";	// console terminal color
 	private final String ANSI_GREEN 	= "\u001B[32m";
@@ -32,31 +48,98 @@ public class CompilationEngine {
 	 *  THe next routing called must be compileClass.
 	 */
 	public CompilationEngine(String path) {
+		this(path, new NameTable(), new CompilerOptions());
+	}
+	
+	/** Creates a new compilation engine with the given input and output.
+	 *  Names are interned in the given name table, which may be shared
+	 *  by all the classes of a build.
+	 *  The class is parsed into an IRTree, then lowered to VM code by VMGenerator.
+	 */
+	public CompilationEngine(String path, NameTable names, CompilerOptions options) {
+		this(path, names, options, System.out);
+	}
+	
+	/** Creates a new compilation engine that prints its diagnostics to the
+	 *  given stream, so that classes compiled in parallel can each have their own.
+	 */
+	public CompilationEngine(String path, NameTable names, CompilerOptions options, PrintStream out) {
+		this(path, names, options, out, null);
+	}
+	
+	/** Creates a new compilation engine that compiles the class against the
+	 *  subroutine signatures of the whole program. Calls are checked against
+	 *  them, and an unqualified call of a function does not pass this.
+	 */
+	public CompilationEngine(String path, NameTable names, CompilerOptions options, PrintStream out,
+			SubroutineIndex index) {
+		
+		this.names = names;
+		this.options = options;
+		this.out = out;
+		this.index = index;
 		
-		jt = new JackTokenizer(path);
+		jt = new JackTokenizer(path, names, JackTokenizer.WINDOW, options.tokens, out);	// tokens are streamed, not held in full
 		
-		st = new SymbolTable();
+		st = new SymbolTable(names, out);
 		
-		vw = new VMWriter(path);
+		vw = new VMWriter(path, names, out);
 		
-		File fl = new File(path.substring(0, path.lastIndexOf(".")) + ".xml");
+		ir = new IRTree();
 		
 		try {
-			fw = new FileWriter(fl);
+			if (options.xml) {
+				File fl = new File(path.substring(0, path.lastIndexOf(".")) + ".xml");
+				fw = new BufferedWriter(new FileWriter(fl), 1 << 16);
+			}
 			
 			if ( jt.hasMoreTokens() )
 				jt.advance();
 			
 			compileClass();
 			
-			fw.close();
+			jt.close();
+			
+			if (fw != null)
+				fw.close();
 			
 			st.Show();
 			
+			if (root >= 0 && options.optimize)
+				optimize();
+			
+			if (root >= 0)
+				new VMGenerator(ir, vw, names, options).writeClass(root);
+			
 			vw.close();
 			
 		} catch (IOException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
+		}
+	}
+	
+	/** Optimizes the IR of the class, and reports the no. of VM commands
+	 *  removed as dead code from each subroutine
+	 */
+	private void optimize() {
+		Optimizer opt = new Optimizer(ir);
+		VMGenerator sizer = new VMGenerator(ir, new VMWriter(names), names, options);
+		int[] before, after;
+		int i = 0;
+		
+		opt.optimizeClass(root);
+		
+		before = sizer.sizes(root);
+		opt.removeDeadCode(root);
+		after = sizer.sizes(root);
+		
+		for (int n = ir.c(root); n >= 0; n = ir.next(n)) {
+			if (ir.kind(n) != IRTree.SUBROUTINE)
+				continue;
+			if (before[i] != after[i])
+				out.format("%s.%s : %d dead VM commands removed\n",
+					names.nameOf(className), names.nameOf(ir.b(n)), before[i] - after[i]);
+			i++;
 		}
 	}
 	
@@ -64,24 +147,32 @@ public class CompilationEngine {
 	 *  Syntax: 'class' className '{' classVarDec* subroutineDec* '}'
 	 */
 	public void compileClass() {
+		int first = -1, last = -1;
+		
 		writeToken("<class>");
 		indent++;
 		
-		writeTokenAdv("class");		// class
+		writeKeywordAdv(JackTokenizer.CLASS);	// class
 			
-		className = writeTokenAdv2("-i");	// className
+		className = writeNameAdv(IDENT);	// className
 		
-		vw.writeVM("// class " + className);
+		writeSymbolAdv('{');		// {
 		
-		writeTokenAdv("\\{");		// {
+		while ( keywordIs(JackTokenizer.STATIC) || keywordIs(JackTokenizer.FIELD) ) {
+			last = ir.link(last, compileClassVarDec());
+			if (first < 0)
+				first = last;
+		}
 		
-		while ( tokenIs("static|field") )
-			compileClassVarDec();
+		while ( keywordIs(JackTokenizer.CONSTRUCTOR) || keywordIs(JackTokenizer.METHOD) || keywordIs(JackTokenizer.FUNCTION) ) {
+			last = ir.link(last, compileSubroutine());
+			if (first < 0)
+				first = last;
+		}
 		
-		while ( tokenIs("constructor|method|function") )
-			compileSubroutine();
+		writeSymbolAdv('}');		// }
 		
-		writeTokenAdv("\\}");		// }
+		root = ir.add(IRTree.CLASS, className, st.VarCount(SymbolTable.Kind.FIELD), first, st.VarCount(SymbolTable.Kind.STATIC));
 		
 		indent--;
 		writeToken("</class>");
@@ -93,75 +184,93 @@ public class CompilationEngine {
 	 *  Syntax: field|static keyword|identifier identifier ;
 	 *  Keyword must be either int, boolean or char.
 	 *  Syntax: ('static'|'field') type varName (',' varName)* ';'
+	 *  @return VAR_DEC node
 	 */
-	public void compileClassVarDec() {
+	public int compileClassVarDec() {
+		int kind, nNames;
+		String comment;
 		
 		writeLine("<classVarDec>");
 		indent++;
 		
-		vw.writeVM("\n// " + readStatement(";"));
+		comment = readStatement(';');
 		
-		tokenKind = writeTokenAdv2("static|field");
+		kind = jt.keyWord();
+		tokenKind = (kind == JackTokenizer.STATIC) ? SymbolTable.Kind.STATIC : SymbolTable.Kind.FIELD;
+		writeTokenAdv();
 			
-		compileDec();
+		nNames = compileDec();
 		
 		indent--;
 		writeLine("</classVarDec>");
+		
+		return ir.add(IRTree.VAR_DEC, kind, nNames, -1, -1, comment);
 	}
 	
 	/** Compiles a var declaration.
 	 *  Syntax: 'var' type varName (',' varName)* ';'
+	 *  @return VAR_DEC node
 	 */
-	public void compileVarDec() {
+	public int compileVarDec() {
+		int nNames;
+		String comment;
 		
 		writeLine("<varDec>");
 		indent++;
 		
-		tokenKind = "local";
+		tokenKind = SymbolTable.Kind.LOCAL;
 		
-		vw.writeVM("\n// " + readStatement(";"));
+		comment = readStatement(';');
 		
-		writeTokenAdv("var");
+		writeKeywordAdv(JackTokenizer.VAR);
 			
-		compileDec();
+		nNames = compileDec();
 		
 		indent--;
 		writeLine("</varDec>");
+		
+		return ir.add(IRTree.VAR_DEC, JackTokenizer.VAR, nNames, -1, -1, comment);
 	}
 	
 	/** Compiles a local or class var declaration statement
 	 *  Used by compileClassVarDec and compileVarDec
 	 *  Syntax: type varName (',' varName)* ';'
+	 *  @return no. of names declared
 	 */
-	private void compileDec() {
+	private int compileDec() {
+		int nNames = 1;
 		
 		if ( isaType2() ) {
-			tokenType = getTokenVal();
-			writeTokenAdv(null);		//  type
+			tokenType = jt.nameId();
+			writeTokenAdv();			//  type
 		}
 		
 		writeVMVar();
 		
 		writeSymbolEntryAdv();
-		//writeTokenAdv("-i");			// varName
+		//writeNameAdv(IDENT);			// varName
 		
-		while ( tokenIs("\\,") ) {
-			writeTokenAdv("\\,");		// ,
+		while ( symbolIs(',') ) {
+			writeSymbolAdv(',');		// ,
 			
 			writeVMVar();
 			
 			writeSymbolEntryAdv();
-			//writeTokenAdv("-i");		// varName
+			//writeNameAdv(IDENT);		// varName
+			
+			nNames++;
 		}
 	
-		writeTokenAdv("\\;");			// ;
+		writeSymbolAdv(';');			// ;
+		
+		return nNames;
 	}
 	
-	/** Stores in symbol table and generates VM code
+	/** Stores in symbol table
 	 * @param name
 	 */
 	private void writeVMVar() {
-		String name = getTokenVal();	// varName
+		int name = jt.nameId();			// varName
 		
 		st.define(name, tokenType, tokenKind);
 		st.Show();
@@ -170,36 +279,44 @@ public class CompilationEngine {
 	/** Compiles a complete method, function, or constructor.
 	 *  Syntax: (constructor|function|method)  (void|type) subroutineName ( parameterList ) subroutineBody
 	 *  e.g. constructor Square new(int x, int y, int size) { statements; }
+	 *  @return SUBROUTINE node
 	 */
-	public void compileSubroutine() {
+	public int compileSubroutine() {
+		int node;
+		String comment;
 		
 		writeLine("<subroutineDec>");
 		indent++;
 		
-		vw.writeVM("\n// " + readStatement("{"));
+		comment = readStatement('{');
 		
-		subKeyWord = writeTokenAdv2("constructor|function|method");
+		subKind = jt.keyWord();			// constructor, function or method
+		writeTokenAdv();
 		
-		subType = writeTokenAdv2("-t");
+		subType = writeNameAdv(TYPE);
 		
-		subName = writeTokenAdv2("-i");	// subroutineName
+		subName = writeNameAdv(IDENT);	// subroutineName
+		
+		node = ir.add(IRTree.SUBROUTINE, subKind, subName, -1, -1, comment);
 		
 		st.startSubroutine();
 		
 		// methods with k arguments compiled to operate on k+1 arguments
-		if (subKeyWord.matches("method"))
-			st.define("this", subName, "argument");
+		if (subKind == JackTokenizer.METHOD)
+			st.define(JackTokenizer.THIS - JackTokenizer.CLASS, className, SymbolTable.Kind.ARG);
 		
-		writeTokenAdv("\\(");			// (
+		writeSymbolAdv('(');			// (
 		
 		compileParameterList();
 		
-		writeTokenAdv("\\)");			// )
+		writeSymbolAdv(')');			// )
 		
-		compileSubroutineBody();
+		compileSubroutineBody(node);
 		
 		indent--;
 		writeLine("</subroutineDec>");
+		
+		return node;
 	}
 	
 	/** Compiles a (possibly empty) parameter list, not including the enclosing "()".
@@ -207,28 +324,28 @@ public class CompilationEngine {
 	 *  type: keyword is (char|int|boolean), identifier is built-in class type
 	 */
 	public void compileParameterList() {
-		String name = null;
+		int name = -1;
 		
 		writeLine("<parameterList>");
 		indent++;
 		
-		tokenKind = "argument";
+		tokenKind = SymbolTable.Kind.ARG;
 		
-		if (! tokenIs("\\)") ) {
+		if (! symbolIs(')') ) {
 			
-			tokenType = writeTokenAdv2("-t2");		// type
+			tokenType = writeNameAdv(TYPE2);		// type
 			
-			name = writeTokenAdv2("-i");			// varName
+			name = writeNameAdv(IDENT);				// varName
 			
 			st.define(name, tokenType, tokenKind);
 			
-			while ( tokenIs("\\,") ) {
+			while ( symbolIs(',') ) {
 				
-				writeTokenAdv("\\,");				// ,
+				writeSymbolAdv(',');				// ,
 				
-				tokenType = writeTokenAdv2("-t2");	// type
+				tokenType = writeNameAdv(TYPE2);	// type
 				
-				name = writeTokenAdv2("-i");		// varName
+				name = writeNameAdv(IDENT);			// varName
 				
 				st.define(name, tokenType, tokenKind);
 			}
@@ -241,398 +358,428 @@ public class CompilationEngine {
 	/** Compiles a subroutine body, including { }.
 	 *  Syntax: '{' (varDec)* statements '}'
 	 *  Keeps track of no. of opening and closing braces.
+	 *  @param node SUBROUTINE node that gets the var declarations and statements
 	 */
-	private void compileSubroutineBody() {
+	private void compileSubroutineBody(int node) {
+		int first = -1, last = -1;
 		
 		writeLine("<subroutineBody>");
 		indent++;
 		
-		writeTokenAdv("\\{");
+		writeSymbolAdv('{');
 		
-		while ( tokenIs("var") )
-			compileVarDec();
+		while ( keywordIs(JackTokenizer.VAR) ) {
+			last = ir.link(last, compileVarDec());
+			if (first < 0)
+				first = last;
+		}
 		
-		vw.writeFunction(className + "." + subName, st.VarCount("local"));
+		ir.setC(node, first);
 		
-		if (subKeyWord.equals("method")) {
-			vw.writePush("argument", 0);
-			
-			vw.writePop("pointer", 0);
-		}
-		else if (subKeyWord.equals("constructor"))
-			compileConstructorAlloc();
-
-		compileStatements();
+		ir.setD(node, compileStatements());
 		
-		writeTokenAdv("\\}");
+		writeSymbolAdv('}');
 		
 		indent--;
 		writeLine("</subroutineBody>");
 	}
 	
-	/** Compiles construct code for new object creation and memory allocation
-	 */
-	private void compileConstructorAlloc() {
-		int nFields = st.VarCount("field");
-		
-		if (nFields == 0)
-			return;
-		
-		vw.writePush("constant", st.VarCount("field"));
-		
-		vw.writeCall("Memory.alloc", 1);
-	
-		vw.writePop("pointer", 0);
-	}
-	
 	/** Compiles a sequence of statements, not
 	 *  including the enclosing "{}".
 	 *  Syntax: statement*
 	 *  Statement prefix: let | if | while | do | return
+	 *  @return first statement node, -1 if none
 	 */
-	public void compileStatements() {
+	public int compileStatements() {
+		int first = -1, last = -1;
+		int node;
 		
 		writeLine("<statements>");
 		indent++;
 		
-		while ( tokenIs("let|do|while|if|return") ) {
+		for (boolean more = true; more; ) {
 			switch(jt.keyWord()) {
 			
 			case JackTokenizer.DO :
-				compileDo();
+				node = compileDo();
 				break;
 				
 			case JackTokenizer.LET :
-				compileLet();
+				node = compileLet();
 				break;
 				
 			case JackTokenizer.WHILE :
-				compileWhile();
+				node = compileWhile();
 				break;
 				
 			case JackTokenizer.RETURN :
-				compileReturn();
+				node = compileReturn();
 				break;
 				
 			case JackTokenizer.IF :
-				compileIf();
+				node = compileIf();
 				break;
 				
-			default:
+			default:				// end of statements
+				node = -1;
+				more = false;
 				break;
 			}
+			
+			last = ir.link(last, node);
+			if (first < 0)
+				first = last;
 		}
 		
 		indent--;
 		writeLine("</statements>");
+		
+		return first;
 	}
 	
 	/** Compiles a do statement.
 	 *  Syntax: 'do' subroutineCall ';'
+	 *  @return DO node
 	 */
-	public void compileDo() {
+	public int compileDo() {
+		int call;
+		String comment;
 		
 		writeLine("<doStatement>");
 		indent++;
 		
-		vw.writeVM("\n// " + readStatement(";"));
-		
-		writeTokenAdv("do");
+		comment = readStatement(';');
 		
-		compileSubroutineCall();
+		writeKeywordAdv(JackTokenizer.DO);
 		
-		vw.writePop("temp", 0);		// drop the returned value for do statements
+		call = compileSubroutineCall();
 		
-		writeTokenAdv("\\;");
+		writeSymbolAdv(';');
 		
 		indent--;
 		writeLine("</doStatement>");
+		
+		return ir.add(IRTree.DO, call, -1, -1, -1, comment);
 	}
 	
 	/** Compiles a subroutine call expression
 	 *  Syntax: subroutineName '(' expressionList ')' | 
 	 *              (className | varName) '.' subroutineName '(' expressionList ')'
+	 *  @return CALL node, -1 if neither '(' nor '.' follows the name
 	 */	
-	private void compileSubroutineCall() {
+	private int compileSubroutineCall() {
+		int objName, sub, args, receiver;	// local, nested calls in the argument list must not overwrite them
+		int line, column;
+		SymbolTable.Symbol obj;
+		SubroutineIndex.Signature sig;
 		
-		objName = writeTokenAdv2("-i");	// subroutineName or (className or varName)
+		line = lineNo();
+		column = jt.column();
 		
-		if (tokenIs("\\(") ) {
+		objName = writeNameAdv(IDENT);	// subroutineName or (className or varName)
+		
+		if (symbolIs('(') ) {
 			
-			writeTokenAdv("\\(");	// (
+			writeSymbolAdv('(');	// (
 			
-			vw.writePush("pointer", 0);		// pushes THIS
+			args = compileExpressionList();
 			
-			expList = 0;
+			writeSymbolAdv(')');	// )
 			
-			compileExpressionList();
+			sig = checkCall(className, objName, args, SELF, line, column);
 			
-			writeTokenAdv("\\)");	// )
+			receiver = -1;
+			if (sig == null || sig.kind == JackTokenizer.METHOD)
+				receiver = ir.add(IRTree.KEYWORD, JackTokenizer.THIS, -1, -1, -1);	// pushes THIS
 
-			vw.writeCall(className + "." + objName, expList + 1);
+			return ir.add(IRTree.CALL, className, objName, args, receiver);
 		}
-		else if (tokenIs("\\.") ) {
+		else if (symbolIs('.') ) {
 			
-			writeTokenAdv("\\.");	// .
+			writeSymbolAdv('.');	// .
 			
-			if (! st.KindOf(objName).equals("NONE") )
-				pushVar(objName);
+			obj = st.lookup(objName);
 			
-			subName = writeTokenAdv2("-t");	// subroutineName
+			receiver = -1;
+			if (obj != null)
+				receiver = varNode(objName);
 			
-			writeTokenAdv("\\(");	// (
+			sub = writeNameAdv(TYPE);	// subroutineName
 			
-			expList = 0;
+			writeSymbolAdv('(');	// (
 			
-			compileExpressionList();
+			args = compileExpressionList();
 			
-			writeTokenAdv("\\)");	// )
+			writeSymbolAdv(')');	// )
 			
-			if (! st.TypeOf(objName).equals("NONE"))
-				vw.writeCall(st.TypeOf(objName) + "." + subName, expList + 1);	// method call with obj as arg 0
-			else
-				vw.writeCall(objName + "." + subName, expList);
+			if (obj != null) {
+				checkCall(obj.type, sub, args, OBJECT, line, column);
+				return ir.add(IRTree.CALL, obj.type, sub, args, receiver);	// method call with obj as arg 0
+			}
+			else {
+				checkCall(objName, sub, args, CLASS, line, column);
+				return ir.add(IRTree.CALL, objName, sub, args, receiver);
+			}
 		}
+		return -1;
+	}
+	
+	/** Checks a call against the signatures of the program. Calls to
+	 *  external classes, and all calls when the program is not indexed, are
+	 *  not checked.
+	 * @param cls class id
+	 * @param sub subroutine id
+	 * @param args first argument, -1 if none
+	 * @param how SELF for subroutineName(), OBJECT for varName.subroutineName(),
+	 *        CLASS for className.subroutineName()
+	 * @param line source position of the call
+	 * @param column
+	 * @return the signature called, null if not known
+	 */
+	private SubroutineIndex.Signature checkCall(int cls, int sub, int args, int how, int line, int column) {
+		SubroutineIndex.Signature sig;
+		String callee;
+		int nArgs = 0;
+		
+		if (index == null || !index.isKnown(cls))
+			return null;
+		
+		callee = names.nameOf(cls) + "." + names.nameOf(sub);
+		sig = index.lookup(cls, sub);
+		
+		if (sig == null) {
+			printCallErr(line, column, callee + " is not defined");
+			return null;
+		}
+		
+		for (int n = args; n >= 0; n = ir.next(n))
+			nArgs++;
+		
+		if (nArgs != sig.nParams)
+			printCallErr(line, column, String.format("%s takes %d arguments but is called with %d",
+					callee, sig.nParams, nArgs));
+		
+		if (how == OBJECT && sig.kind != JackTokenizer.METHOD)
+			printCallErr(line, column, callee + " is not a method but is called on an object");
+		else if (how == CLASS && sig.kind == JackTokenizer.METHOD)
+			printCallErr(line, column, callee + " is a method but is called without an object");
+		else if (how == SELF && sig.kind == JackTokenizer.METHOD && subKind == JackTokenizer.FUNCTION)
+			printCallErr(line, column, callee + " is a method but is called from a function");
+		
+		return sig;
 	}
 	
 	/** Compiles a let statement.
 	 *  Syntax: 'let' varName ( '[' expression ']' )? '=' expression ';'
+	 *  @return LET node
 	 */
-	public void compileLet() {
-		String varName = null;
-		boolean isArray = false;
+	public int compileLet() {
+		int varName = -1;
+		int index = -1, value;
+		String comment;
 		
 		writeLine("<letStatement>");
 		indent++;
 		
-		vw.writeVM("\n// " + readStatement(";"));
+		comment = readStatement(';');
 		
-		writeTokenAdv("let");			// let
+		writeKeywordAdv(JackTokenizer.LET);	// let
 		
-		varName = writeTokenAdv2("-i");	// varName
+		varName = writeNameAdv(IDENT);	// varName
 		
-		if ( tokenIs("\\[") ) {
-			
-			pushVar(varName);
-			
-			writeTokenAdv("\\[");		// [
+		if ( symbolIs('[') ) {
 			
-			compileExpression();		// expression1
+			writeSymbolAdv('[');		// [
 			
-			writeTokenAdv("\\]");		// ]
+			index = compileExpression();	// expression1
 			
-			vw.writeArithmetic("+");
-			
-			isArray = true;
+			writeSymbolAdv(']');		// ]
 		}
 			
-		writeTokenAdv("\\=");			// =
-			
-		compileExpression();			// expression2
+		writeSymbolAdv('=');			// =
 			
-		writeTokenAdv("\\;");			// ;
-		
-		if (isArray) {
-			vw.writePop("temp", 0);			// temp 0 = value of expression2	
-			
-			vw.writePop("pointer", 1);		// store arr[expression1]
-			
-			vw.writePush("temp", 0);
+		value = compileExpression();	// expression2
 			
-			vw.writePop("that", 0);
-		}
-		else {
-			popVar(varName);
-		}
+		writeSymbolAdv(';');			// ;
 		
 		indent--;
 		writeLine("</letStatement>");
+		
+		SymbolTable.Symbol var = st.lookup(varName);
+		
+		return ir.add(IRTree.LET, segmentOf(var), indexOf(var), index, value, comment);
 	}
 	
 	/** Compiles a while statement.
 	 *  Syntax: while ( expression ) { statements }
+	 *  @return WHILE node
 	 */
-	public void compileWhile() {
-		int LFalse = lblNo++;
-		int LTrue  = lblNo++;
+	public int compileWhile() {
+		int cond, body;
+		String comment;
 		
 		writeLine("<whileStatement>");
 		indent++;
 		
-		vw.writeVM("\n// " + readStatement("{"));
-		
-		writeTokenAdv("while");		// while
-		
-		vw.writeLabel("L" + LTrue);
-		
-		writeTokenAdv("\\(");		// (
-		
-		compileExpression();
+		comment = readStatement('{');
 		
-		writeTokenAdv("\\)");		// )
+		writeKeywordAdv(JackTokenizer.WHILE);	// while
 		
-		vw.writeArithmetic("~");	// not
+		writeSymbolAdv('(');		// (
 		
-		vw.writeIf("L" + LFalse);
+		cond = compileExpression();
 		
-		writeTokenAdv("\\{");		// {
+		writeSymbolAdv(')');		// )
 		
-		compileStatements();
+		writeSymbolAdv('{');		// {
 		
-		writeTokenAdv("\\}");		// }
+		body = compileStatements();
 		
-		vw.writeGoto("L" + LTrue);
-		
-		vw.writeLabel("L" + LFalse);
+		writeSymbolAdv('}');		// }
 		
 		indent--;
 		writeLine("</whileStatement>");
+		
+		return ir.add(IRTree.WHILE, cond, body, -1, -1, comment);
 	}
 	
 	/** Compiles a return statement.
 	 *  Syntax: 'return' expression? ';'
 	 *  return statement can occur anywhere, not necessary the last statement in subroutine body
+	 *  @return RETURN node
 	 */
-	public void compileReturn() {
+	public int compileReturn() {
+		int value = -1;
 		
 		writeLine("<returnStatement>");
 		indent++;
 		
-		writeTokenAdv("return");	// return
-		
-		if (! tokenIs("\\;") )
-			compileExpression();
+		writeKeywordAdv(JackTokenizer.RETURN);	// return
 		
-		writeTokenAdv("\\;");		// ;
+		if (! symbolIs(';') )
+			value = compileExpression();
 		
-		if (subType.equals("void"))
-			vw.writePush("constant", 0);
-		
-		vw.writeReturn();
+		writeSymbolAdv(';');		// ;
 		
 		indent--;
 		writeLine("</returnStatement>");
+		
+		return ir.add(IRTree.RETURN, value, (subType == JackTokenizer.VOID - JackTokenizer.CLASS) ? 1 : 0, -1, -1);
 	}
 		
 	/** Compiles a if statement,
 	 *  possibly with a trailing else clause.
 	 *  Syntax: 'if' '(' expression ')' '{' statements '}' ( 'else' '{' statements '}' )?
+	 *  @return IF node
 	 */
-	public void compileIf() {
-		int LFalse = lblNo++;
-		int LEnd   = lblNo++;
+	public int compileIf() {
+		int cond, then, otherwise = -1;
+		String comment;
 		
 		writeLine("<ifStatement>");
 		indent++;
 		
-		vw.writeVM("\n// " + readStatement("{"));
+		comment = readStatement('{');
 		
-		writeTokenAdv("if");		// if
+		writeKeywordAdv(JackTokenizer.IF);	// if
 		
-		writeTokenAdv("\\(");		// (
+		writeSymbolAdv('(');		// (
 		
-		compileExpression();
+		cond = compileExpression();
 		
-		writeTokenAdv("\\)");		// )
+		writeSymbolAdv(')');		// )
 		
-		vw.writeArithmetic("~");	// not
+		writeSymbolAdv('{');		// {
 		
-		vw.writeIf("L" + LFalse);
+		then = compileStatements();
 		
-		writeTokenAdv("\\{");		// {
+		writeSymbolAdv('}');		// }
 		
-		compileStatements();
-		
-		writeTokenAdv("\\}");		// }
-		
-		vw.writeGoto("L" + LEnd);
-		
-		vw.writeLabel("L" + LFalse);
-		
-		if ( tokenIs("else") ) {
+		if ( keywordIs(JackTokenizer.ELSE) ) {
 			
-			writeTokenAdv("else");	// else
+			writeKeywordAdv(JackTokenizer.ELSE);	// else
 			
-			writeTokenAdv("\\{");	// {
+			writeSymbolAdv('{');	// {
 			
-			compileStatements();
+			otherwise = compileStatements();
 			
-			writeTokenAdv("\\}");	// }
+			writeSymbolAdv('}');	// }
 		}
 		
-		vw.writeLabel("L" + LEnd);
-		
 		indent--;
 		writeLine("</ifStatement>");
+		
+		return ir.add(IRTree.IF, cond, then, otherwise, -1, comment);
 	}
 	
 	/** Compiles a (possibly empty) comma-separated list of expressions.
 	 *  Syntax: ( expression (',' expression)* )?
 	 *  Called by subroutineCall()
+	 *  @return first expression node, -1 if the list is empty
 	 */
-	public void compileExpressionList() {
+	public int compileExpressionList() {
+		int first = -1, last = -1;
 		
 		writeLine("<expressionList>");
 		indent++;
 		
-		if (! tokenIs("\\)") ) {
-			compileExpression();
-			
-			expList++;
+		if (! symbolIs(')') ) {
+			first = last = compileExpression();
 			
-			while ( tokenIs("\\,")) {
-				
-				writeTokenAdv("\\,");		// ,
+			while ( symbolIs(',') ) {
 				
-				compileExpression();
+				writeSymbolAdv(',');		// ,
 				
-				expList++;
+				last = ir.link(last, compileExpression());
+				if (first < 0)
+					first = last;
 			}
 		}
 		
 		indent--;
 		writeLine("</expressionList>");
+		
+		return first;
 	}
 	
 	/** Compiles an expression.
 	 *  Syntax: term (op term)*
+	 *  Operators are applied left to right, there is no precedence.
+	 *  @return expression node, -1 if there is no term
 	 */
-	public void compileExpression() {
-		String op = null;
+	public int compileExpression() {
+		int node;
+		char op;
 		
 		writeLine("<expression>");
 		indent++;
 		
-		compileTerm();
+		node = compileTerm();
 		
 		while ( isOp() ) {
-			op = writeTokenAdv2(null);	// op
-			
-			compileTerm();
+			op = jt.symbol();
+			writeTokenAdv();			// op
 			
-			vw.writeArithmetic(op);
+			node = ir.add(IRTree.BINARY, op, node, compileTerm(), -1);
 		}
 		
 		indent--;
 		writeLine("</expression>");
+		
+		return node;
 	}
 	
 	/** Checks whether the operator is valid
 	 * @return boolean
 	 */
 	private boolean isOp() {
-		String sym   = null;
-		String opStr = "+-*/&|<>=";
-		
-		if ( ! (jt.tokenType() == JackTokenizer.SYMBOL))
-			return false;
-		
-		sym = jt.symbol() + "";
-		
-		if (opStr.contains(sym))
+		switch (jt.symbol()) {		// '\0' if not a symbol
+		case '+' : case '-' : case '*' : case '/' :
+		case '&' : case '|' : case '<' : case '>' : case '=' :
 			return true;
-		else
+		default :
 			return false;
+		}
 	}
 	
 	/** Compiles a term. This routine is faced with a slight difficulty 
@@ -649,8 +796,10 @@ public class CompilationEngine {
 	 *              (className | varName) '.' subroutineName '(' expressionList ')'
 	 *   
 	 *  varName requires look ahead but will not consume additional token if it is just a simple term.
+	 *  @return expression node, -1 if the token does not start a term
 	 */
-	public void compileTerm() {
+	public int compileTerm() {
+		int node = -1;
 		
 		writeLine("<term>");
 		indent++;
@@ -658,39 +807,33 @@ public class CompilationEngine {
 		switch (jt.tokenType()) { 
 		
 		case JackTokenizer.INT_CONST:
-			term = writeTokenAdv2(null);
-			vw.writePush("constant", Integer.parseInt(term));
+			node = ir.add(IRTree.INT, jt.intVal(), -1, -1, -1);
+			writeTokenAdv();
 			break;
 			
 		case JackTokenizer.STRING_CONST:
-			term = writeTokenAdv2(null);
-			strConst(term);
+			node = ir.add(IRTree.STRING, -1, -1, -1, -1, jt.stringVal());
+			writeTokenAdv();
 			break;
 			
 		case JackTokenizer.KEYWORD:
-			if ( tokenIs("true|false|null|this")) {
-				term = writeTokenAdv2(null);
-				switch (term) {
-				case "true" :
-					vw.writePush("constant", 1);
-					vw.writeVM("neg");
-					break;
-				case "false" : case "null" :
-					vw.writePush("constant", 0);
-					break;
-				case "this" :
-					vw.writePush("pointer", 0);	// e.g. called by constructor return this;
-					break;
-				}
-			}			
+			switch (jt.keyWord()) {
+			case JackTokenizer.TRUE : case JackTokenizer.FALSE :
+			case JackTokenizer.NULL : case JackTokenizer.THIS :
+				node = ir.add(IRTree.KEYWORD, jt.keyWord(), -1, -1, -1);
+				writeTokenAdv();
+				break;
+			default :					// not a keyword constant
+				break;
+			}
 			break;
 				
 		case JackTokenizer.IDENTIFIER:
-			compileTermLookAhead();
+			node = compileTermLookAhead();
 			break;
 			
 		case JackTokenizer.SYMBOL:		// ( or unary op
-			processSym();
+			node = processSym();
 			break;
 		
 		default:
@@ -699,135 +842,123 @@ public class CompilationEngine {
 		
 		indent--;
 		writeLine("</term>");
-	}
-	
-	/** Process the string assignment and calling OS constructor String.new(length)
-	 *  String assignments are handled using a series f calls to String.appendChar(c)
-	 */
-	private void strConst(String s) {
-		int len = s.length();
-		char [] arr = s.toCharArray();
-		
-		vw.writePush("constant", len + 1);		// String.new(length)
-		
-		vw.writeCall("String.new", 1);
-		
-		for (int i = 0; i < len; i++) {
-			vw.writePush("constant", (int) arr[i]);
-			
-			vw.writeCall("String.appendChar", 2);
-		}
 		
-		vw.writePush("constant", 32);			// null char
-		
-		vw.writeCall("String.appendChar", 2);
+		return node;
 	}
 	
 	/** processes the identifier and look ahead 1 token
-	 *  Uses peekToken() to peek at next token; it does not advance to next token.
+	 *  Uses peekSymbol() to peek at next token; it does not advance to next token.
+	 *  @return expression node
 	 */
-	private void compileTermLookAhead() {
-		
-		String nextToken = getNextTokenVal();	// look ahead 1 token
-		
-		if ( nextToken.equals("[") )
-			compileArray();
+	private int compileTermLookAhead() {
 		
-		else if ( nextToken.equals("(") || nextToken.equals(".") )
-			compileSubroutineCall();
-		
-		else {
-			term = writeTokenAdv2("-i");		// varName
-			pushVar(term);
+		switch (jt.peekSymbol(1)) {		// look ahead 1 token
+		case '[' :
+			return compileArray();
+			
+		case '(' : case '.' :
+			return compileSubroutineCall();
+			
+		default :
+			return varNode(writeNameAdv(IDENT));	// varName
 		}
 	};
 	
 	/** compiles array term of the form varName[expression]
+	 *  @return INDEX node
 	 */
-	private void compileArray() {
+	private int compileArray() {
+		int index;
+		int varName = writeNameAdv(IDENT);	// identifier
 		
-		String varName = null;
+		writeSymbolAdv('[');			// [
 		
-		varName = writeTokenAdv2("-i");	// identifier
-		
-		pushVar(varName);
-		
-		writeTokenAdv("\\[");			// [
-		
-		compileExpression();
+		index = compileExpression();
 		 
-		writeTokenAdv("\\]");			// ]
+		writeSymbolAdv(']');			// ]
 		
-		vw.writeArithmetic("+");
+		SymbolTable.Symbol var = st.lookup(varName);
 		
-		vw.writePop("pointer", 1);		// set pointer 1 to (arr + value of expression)
+		return ir.add(IRTree.INDEX, segmentOf(var), indexOf(var), index, -1);
+	}
+	
+	/** Returns a VAR node for a variable, resolved to its segment and index.
+	 *  A field var is pushed as: push this i
+	 */
+	private int varNode(int varName) {
+		SymbolTable.Symbol var = st.lookup(varName);
 		
-		vw.writePush("that", 0);		// access array
+		return ir.add(IRTree.VAR, segmentOf(var), indexOf(var), -1, -1);
 	}
 	
-	/** Pushes a var. Checks if it is a field var. Format: push this i
+	/** Returns the IR segment of a symbol
+	 * @param var symbol, null if not defined
+	 * @return STATIC, FIELD, ARG, LOCAL or NONE
 	 */
-	private void pushVar(String varName) {
-		if (st.KindOf(varName).equals("field"))
-			vw.writePush("this", st.IndexOf(varName));
-		else
-			vw.writePush(st.KindOf(varName), st.IndexOf(varName));
+	private static int segmentOf(SymbolTable.Symbol var) {
+		return (var == null) ? IRTree.NONE : var.kind.segment;
 	}
 	
-	/** pop a var. Checks if it is a field var. Format: pop this i
+	/** Returns the index of a symbol
+	 * @param var symbol, null if not defined
+	 * @return int, -1 if not defined
 	 */
-	private void popVar(String varName) {
-		if (st.KindOf(varName).equals("field"))
-			vw.writePop("this", st.IndexOf(varName));
-		else
-			vw.writePop(st.KindOf(varName), st.IndexOf(varName));
+	private static int indexOf(SymbolTable.Symbol var) {
+		return (var == null) ? -1 : var.index;
 	}
 	
 	/** processes either the format: '(' expression ')' or ('~'|'-') Term
+	 *  @return expression node
 	 */
-	private void processSym() {
-		String op = null;
+	private int processSym() {
 		
-		if ( tokenIs("\\(")) {
+		switch (jt.symbol()) {
+		case '(' :
+			int node;
 			
-			writeTokenAdv("\\(");	// (
+			writeSymbolAdv('(');	// (
 			
-			compileExpression();
+			node = compileExpression();
 			
-			writeTokenAdv("\\)");	// )
-		}
-		else if ( tokenIs("\\~")) {
+			writeSymbolAdv(')');	// )
+			return node;
 			
-			op = writeTokenAdv2("\\~");	// ~
+		case '~' :
 			
-			compileTerm();
+			writeSymbolAdv('~');	// ~
 			
-			vw.writeArithmetic(op);
-		}
-		else if ( tokenIs("\\-")) {
+			return ir.add(IRTree.UNARY, '~', compileTerm(), -1, -1);
 			
-			writeTokenAdv2("\\-");	// -
+		case '-' :
 			
-			compileTerm();
+			writeSymbolAdv('-');	// -
 			
-			vw.writeArithmetic("u-");
-		}	
+			return ir.add(IRTree.UNARY, '-', compileTerm(), -1, -1);
+			
+		default :
+			return -1;
+		}
 	}
 	
-	/** Read let/do/var/field statements. Stops at ';'
+	/** Read let/do/var/field statements. Stops at the symbol last, e.g. ';'
+	 *  Stops early at the end of file or of the tokenizer's look ahead window.
 	 *  @return String
 	 */
-	private String readStatement(String last) {
+	private String readStatement(char last) {
 		StringBuilder s = new StringBuilder();
 		int step 		= 0;
-		String tokXml   = null;
-		String tokVal 	= getTokenVal();
+		boolean done	= jt.tokenType() == 0 || jt.symbol() == last;
+		String tokVal;
 		
-		while (!tokVal.equals(last)) {
-			tokXml = jt.peekToken(step++);
-			tokVal = jt.xmlToString(tokXml).trim();
-			if ( getTokenType(tokXml).equals("stringConstant") )
+		while (!done) {
+			tokVal = jt.peekVal(step);
+			if (tokVal == null) {
+				s.append("...");
+				break;
+			}
+			if ( jt.peekType(step) == JackTokenizer.STRING_CONST )
 				tokVal = '"' + tokVal + '"';
+			done = jt.peekSymbol(step++) == last;
 			s.append( tokVal + " " );
 		}
 		return s.toString();
@@ -837,18 +968,19 @@ public class CompilationEngine {
 	 * @return boolean
 	 */
 	private boolean isaType() {
-		if (tokenIs("int|char|boolean|void") || jt.tokenType() == JackTokenizer.IDENTIFIER)
-			return true;
-		return false;
+		return jt.keyWord() == JackTokenizer.VOID || isaType2();
 	}
 	
 	/** Is a type: int, char, boolean, built-in className. Exclude void
 	 * @return boolean
 	 */
 	private boolean isaType2() {
-		if (tokenIs("int|char|boolean") || jt.tokenType() == JackTokenizer.IDENTIFIER)
+		switch (jt.keyWord()) {		// -1 if not a keyword
+		case JackTokenizer.INT : case JackTokenizer.CHAR : case JackTokenizer.BOOLEAN :
 			return true;
-		return false;
+		default :
+			return jt.tokenType() == JackTokenizer.IDENTIFIER;
+		}
 	}
 	
 	/** Gets current calling method's name. For debugging
@@ -858,59 +990,56 @@ public class CompilationEngine {
 	    return Thread.currentThread().getStackTrace()[t].getMethodName();
 	}
 	
-	/** Gets line no. in the token list file filenameT.xml
+	/** Gets the source line no. of the current token
 	 * @return int
 	 */
 	private int lineNo() {
-		return (jt.getTokenPos() + 1);
+		return jt.line();
 	}
 	
 	/** Writes indentation at beginning of line
 	 * @return string
 	 */
 	private String indents() {
-		return new String(new char[indent]).replace("\0", "  ");
+		if (indent >= indents.length)
+			indents = Arrays.copyOf(indents, indent * 2);
+		if (indents[indent] == null)
+			indents[indent] = new String(new char[indent]).replace("\0", "  ");
+		return indents[indent];
 	}
 	
 	/** Writes indentation at beginning of line for debugging output
 	 * @return string
 	 */
 	private String indentD() {
-		return ANSI_BLUE + new String(new char[indent]).replace("\0", "| ") + ANSI_RESET;
+		if (indent >= indentsD.length)
+			indentsD = Arrays.copyOf(indentsD, indent * 2);
+		if (indentsD[indent] == null)
+			indentsD[indent] = ANSI_BLUE + new String(new char[indent]).replace("\0", "| ") + ANSI_RESET;
+		return indentsD[indent];
 	}
 	
-	/** Returns the token type of given token xml
-	 * @return string
+	/** Is the current token the given keyword?
+	 * @param code CLASS..THIS
+	 * @return boolean
 	 */
-	public String getTokenType(String xml) {
-		final Matcher m = Pattern.compile("\\<([^>]*)\\>").matcher(xml);
-	    if (m.find())
-	        return m.group(1); // first expression from round brackets (Testing)
-	    else
-	    	return null;
+	private boolean keywordIs(int code) {
+		return jt.keyWord() == code;
 	}
 	
-	/** Token val is a ?
+	/** Is the current token the given symbol?
+	 * @param c
 	 * @return boolean
 	 */
-	private boolean tokenIs(String s) {
-		if ( getTokenVal().matches(s) )
-			return true;
-		return false;
+	private boolean symbolIs(char c) {
+		return jt.symbol() == c;
 	}
 	
 	/** Returns the value of given token
 	 * @return string
 	 */
 	private String getTokenVal() {
-		return jt.xmlToString(jt.getToken()).trim();
-	}
-	
-	/** Returns the value of token at one position ahead.
-	 * @return string
-	 */
-	private String getNextTokenVal() {
-		return jt.xmlToString(jt.peekToken(1)).trim();
+		return jt.tokenVal();
 	}
 	
 	/** Prints value of current token. For debugging
@@ -918,103 +1047,116 @@ public class CompilationEngine {
 	 */
 	private void printCurrentTokenVal() {
 		if (debug)
-			System.out.format("%s%s%d. Info  %s : %s%s%s\n", 
+			out.format("%s%s%d. Info  %s : %s%s%s\n", 
 				indentD(), ANSI_GREEN, lineNo(), 
 				getCurrentMethodName(4), ANSI_YELLOW, getTokenVal(),
 				ANSI_RESET);
 	}
 	
+	private void printCallErr(int line, int column, String s) {
+		out.format("%s%s%d:%d. Error %s.%s : %s.%s\n",
+				indents(), ANSI_CYAN, line, column, names.nameOf(className), names.nameOf(subName),
+				s, ANSI_RESET);
+	}
+	
 	private void printErrMsg(String s) {
-		System.out.format("%s%s%d. Error %s : Expected %s but got a %s.%s\n",
-				indents(), ANSI_CYAN, lineNo(), getCurrentMethodName(4), 
+		out.format("%s%s%d:%d. Error %s : Expected %s but got a %s.%s\n",
+				indents(), ANSI_CYAN, lineNo(), jt.column(), getCurrentMethodName(4), 
 				jt.getToken(), s, ANSI_RESET);
 	}
 	
 	/** Writes token and advances to next token
 	 */
-	private void writeTokenAdv(String s) {
-		if (s != null) {
-			if (s.equals("-i")) {
-				if (! (jt.tokenType() == JackTokenizer.IDENTIFIER)) {
-					printErrMsg(s);
-					return;
-				}
-			}
-			else if (s.equals("-t")) {
-				if (! isaType()) {
-					printErrMsg(s);
-					return;
-				}
-			}
-			else if (s.equals("-t2")) {
-				if (! isaType2()) {
-					printErrMsg(s);
-					return;
-				}	
-			}
-			else if (! tokenIs(s)) {
-				printErrMsg(s);
-				return;
-			}
+	private void writeTokenAdv() {
+		writeToken();
+		jt.advance();
+	}
+	
+	/** Writes token and advances to next token if it is the given keyword
+	 * @param code CLASS..THIS
+	 */
+	private void writeKeywordAdv(int code) {
+		if (! keywordIs(code)) {
+			printErrMsg(JackTokenizer.keywordName(code));
+			return;
 		}
 		
 		writeToken();
 		jt.advance();
 	}
 	
-	/** Writes token and advances to next token. Returns token value
-	 * @return tokenVal
+	/** Writes token and advances to next token if it is the given symbol
+	 * @param c
 	 */
-	private String writeTokenAdv2(String s) {
-		String val = null;
-		if (s != null) {
-			if (s.equals("-i")) {
-				if (! (jt.tokenType() == JackTokenizer.IDENTIFIER)) {
-					printErrMsg(s);
-					return null;
-				}
-			}
-			else if (s.equals("-t")) {
-				if (! isaType()) {
-					printErrMsg(s);
-					return null;
-				}
+	private void writeSymbolAdv(char c) {
+		if (! symbolIs(c)) {
+			printErrMsg(String.valueOf(c));
+			return;
+		}
+		
+		writeToken();
+		jt.advance();
+	}
+	
+	/** Writes token and advances to next token. Returns the token's name id
+	 *  Used for identifiers and type keywords.
+	 * @param expect IDENT, TYPE or TYPE2
+	 * @return name id, -1 if the token is not the expected one
+	 */
+	private int writeNameAdv(int expect) {
+		int id = -1;
+		
+		switch (expect) {
+		case IDENT :
+			if (! (jt.tokenType() == JackTokenizer.IDENTIFIER)) {
+				printErrMsg("identifier");
+				return -1;
 			}
-			else if (s.equals("-t2")) {
-				if (! isaType2()) {
-					printErrMsg(s);
-					return null;
-				}	
+			break;
+		case TYPE :
+			if (! isaType()) {
+				printErrMsg("type");
+				return -1;
 			}
-			else if (! tokenIs(s)) {
-				printErrMsg(s);
-				return null;
+			break;
+		case TYPE2 :
+			if (! isaType2()) {
+				printErrMsg("type");
+				return -1;
 			}
+			break;
 		}
 		
-		val = getTokenVal();
+		id = jt.nameId();
 		writeToken();
 		jt.advance();
-		return val;
+		return id;
 	}
 	
 	/** Writes the symbol table entry if token is an identifier, then advance token
 	 */
 	private void writeSymbolEntryAdv() {
-		String name = getTokenVal();
+		int name = jt.nameId();
 		
 		if (! (jt.tokenType() == JackTokenizer.IDENTIFIER)) {
 			printErrMsg(jt.getToken());
 			return;
 		}
 		
+		if (fw == null) {				// without -xml there is nothing to write
+			jt.advance();
+			return;
+		}
+		
 		writeLine("<identifier>");
 		indent++;
 		
-		writeLine("<name> "  + name 							+ " </name>");
-		writeLine("<type> "  + st.TypeOf(name) 					+ " </type>");
-		writeLine("<kind> "  + st.KindOf(name) 					+ " </kind>");
-		writeLine("<index> " + String.valueOf(st.IndexOf(name)) + " </index>");
+		SymbolTable.Symbol var = st.lookup(name);
+		
+		writeLine("<name> "  + names.nameOf(name)				+ " </name>");
+		writeLine("<type> "  + names.nameOf(var.type)			+ " </type>");
+		writeLine("<kind> "  + var.kind.text 					+ " </kind>");
+		writeLine("<index> " + String.valueOf(var.index)		+ " </index>");
 		
 		indent--;
 		writeLine("</identifier>");
@@ -1025,11 +1167,7 @@ public class CompilationEngine {
 	/** Writes a line to output file
 	 */
 	private void writeLine(String s) {
-		try {
-			fw.write(indents() + s + '\n');
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		writeToken(s);
 		
 		if (debug)
 			printCurrentTokenVal();
@@ -1038,21 +1176,23 @@ public class CompilationEngine {
 	/** Writes the token in xml format to output file
 	 */
 	private void writeToken() {
-		try {
-			fw.write(indents() + jt.getToken() + '\n');
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		if (fw != null)
+			writeToken(jt.getToken());
 	}
 	
 	/** Writes the token given in the param to output file
 	 *  Used for look ahead cases
 	 */
 	private void writeToken(String s) {
+		if (fw == null)
+			return;
+		
 		try {
-			fw.write(indents() + s + '\n');
+			fw.write(indents());
+			fw.write(s);
+			fw.write('\n');
 		} catch (IOException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 	
@@ -0,0 +1,241 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Long running build server. A cold JVM spends most of a small build
+ *  starting up and interpreting; the daemon stays up, so its compiler code
+ *  is loaded and JIT compiled once and every later build runs warm.
+ *  It listens on a localhost port and runs each request, sent by
+ *  CompilerClient, on its own thread in the same way as the command line:
+ *  the tool's static run(String[], PrintStream, PrintStream) is called with
+ *  the request's arguments and the console output is sent back with the exit status.
+ *  The tools are the classes on the daemon's classpath, e.g. JackCompiler in
+ *  project11 or VMTranslator in project08. As a daemon runs only the tools
+ *  of its own project, each project has its own default port, and so its
+ *  own token file: 7411 in project11, 7408 in project08.
+ *  Builds with -cache also find the entries of earlier builds in memory,
+ *  as BuildCache keeps them for the life of the JVM.
+ *
+ *  Builds write files as the daemon's user, so only that user may ask for
+ *  them: the daemon writes a random token to a file in the home directory
+ *  that only its owner can read, and serves only requests that carry it.
+ *
+ *  A request starts with the token, which the daemon answers with 0, or
+ *  with -1 before closing the connection if the token is wrong. The rest
+ *  is: tool name, working directory, no. of arguments, arguments, as
+ *  DataOutputStream UTF strings and int. The tool name "-stop" stops the daemon.
+ *  A reply is: exit status, length of the output, output bytes.
+ *  A client that sends nothing for TIMEOUT ms is dropped.
+ */
+public class CompilerDaemon {
+	
+	public final static int PORT = 7411;		// default port, on the loopback address only
+	public final static String STOP = "-stop";
+	public final static int REFUSED = -1;	// answer to a wrong token
+	
+	private final static int TIMEOUT = 10000;	// ms a read from a client may take
+	private final static int MAX_ARGS = 1024;	// most arguments of a request
+	
+	private ServerSocket server;
+	private File tokenFile;
+	private byte[] token;				// what a request must start with
+	private ExecutorService pool = Executors.newCachedThreadPool();
+	
+	public static void main(String[] args) {
+		int port = PORT;
+		
+		for (String arg : args) {
+			if (arg.startsWith("-port="))
+				port = Integer.parseInt(arg.substring(6));
+			else {
+				System.err.println("Usage: java CompilerDaemon [-port=n]");
+				System.exit(-1);
+			}
+		}
+		
+		try {
+			new CompilerDaemon().serve(port);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+	
+	/** Accepts requests until a stop request closes the server socket
+	 * @param port
+	 * @throws IOException if the port cannot be opened
+	 */
+	private void serve(int port) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		tokenFile = tokenFile(port);
+		token = writeToken(tokenFile).getBytes(StandardCharsets.UTF_8);
+		System.out.format("Compiler daemon listening on port %d\n", port);
+		
+		while (!server.isClosed()) {
+			try {
+				Socket client = server.accept();
+				pool.execute(() -> handle(client));
+			} catch (IOException e) {
+				if (!server.isClosed())
+					e.printStackTrace();
+			}
+		}
+		pool.shutdown();
+		tokenFile.delete();
+		System.out.println("Compiler daemon stopped");
+	}
+	
+	/** Reads one request, runs it and sends back the reply
+	 * @param client
+	 */
+	private void handle(Socket client) {
+		try (Socket s = client) {
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			DataOutputStream reply = new DataOutputStream(s.getOutputStream());
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(buf);
+			String tool, dir;
+			String[] args;
+			int n, status;
+			
+			s.setSoTimeout(TIMEOUT);
+			
+			// nothing more is read from a client without the token
+			if (!MessageDigest.isEqual(token, in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+				reply.writeInt(REFUSED);
+				reply.flush();
+				System.out.println("Compiler daemon refused a request without its token");
+				return;
+			}
+			reply.writeInt(0);
+			reply.flush();
+			
+			tool = in.readUTF();
+			dir = in.readUTF();
+			n = in.readInt();
+			if (n < 0 || n > MAX_ARGS) {
+				System.out.format("Compiler daemon refused a request with %d arguments\n", n);
+				return;
+			}
+			
+			args = new String[n];
+			for (int i = 0; i < args.length; i++)
+				args[i] = resolve(dir, in.readUTF());
+			
+			if (tool.equals(STOP)) {
+				out.println("Compiler daemon stopping");
+				status = 0;
+			}
+			else
+				status = run(tool, args, out);
+			
+			out.flush();
+			reply.writeInt(status);
+			reply.writeInt(buf.size());
+			buf.writeTo(reply);
+			reply.flush();
+			
+			if (tool.equals(STOP))
+				server.close();
+			
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();		// a broken request, the daemon goes on
+		}
+	}
+	
+	/** Returns the file of the token of the daemon on the given port
+	 * @param port
+	 * @return File
+	 */
+	public static File tokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".compilerdaemon-" + port);
+	}
+	
+	/** Writes a new random token to a file only the owner can read or write
+	 * @param file
+	 * @return String the token
+	 * @throws IOException
+	 */
+	private static String writeToken(File file) throws IOException {
+		Path path = file.toPath();
+		byte[] random = new byte[32];
+		StringBuilder hex = new StringBuilder(64);
+		
+		new SecureRandom().nextBytes(random);
+		for (byte b : random)
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			Files.createFile(path);			// not a POSIX file system
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		Files.write(path, hex.toString().getBytes(StandardCharsets.UTF_8));
+		file.deleteOnExit();
+		
+		return hex.toString();
+	}
+	
+	/** Runs a tool. A failing build is reported to the client, never
+	 *  brings down the daemon.
+	 * @param tool class name
+	 * @param args
+	 * @param out
+	 * @return int exit status
+	 */
+	public static int run(String tool, String[] args, PrintStream out) {
+		Method main;
+		
+		try {
+			main = Class.forName(tool).getMethod("run", String[].class, PrintStream.class, PrintStream.class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			out.format("Unknown tool %s\n", tool);
+			return -1;
+		}
+		
+		try {
+			return (Integer) main.invoke(null, args, out, out);
+		} catch (InvocationTargetException e) {
+			e.getCause().printStackTrace(out);
+		} catch (IllegalAccessException e) {
+			e.printStackTrace(out);
+		}
+		return -1;
+	}
+	
+	/** Makes a path argument absolute against the client's working
+	 *  directory, since the daemon runs in a directory of its own.
+	 *  Flags are kept, except for the directory of -cache=dir.
+	 * @param dir working directory of the client
+	 * @param arg
+	 * @return String
+	 */
+	private static String resolve(String dir, String arg) {
+		if (arg.startsWith("-cache="))
+			return "-cache=" + resolve(dir, arg.substring(7));
+		if (arg.startsWith("-") || new File(arg).isAbsolute())
+			return arg;
+		return new File(dir, arg).getPath();
+	}
+}
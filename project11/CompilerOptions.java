@@ -0,0 +1,86 @@
+/** Options of a compiler run, set from JackCompiler's command line flags.
+ */
+public class CompilerOptions {
+	
+	public boolean tokens = false;		// -tokens : write the token list filenameT.xml
+	public boolean optimize = false;	// -O : optimize the generated VM code
+	public boolean xml = false;			// -xml : write the parse tree filename.xml
+	public int jobs = 1;				// -j[n] : no. of classes compiled in parallel
+	public String cache = null;			// -cache[=dir] : build cache directory, "" for the default, null if off
+	public boolean whole = false;		// -whole : index the subroutines of all classes and check calls against them
+	
+	// version of the generated VM code, part of every build cache key. Increase it
+	// when a change to the compiler changes its output, so that older entries are not reused
+	public final static int OUTPUT_VERSION = 2;
+	
+	/** Sets the option named by the given command line flag
+	 * @param flag
+	 * @return false if the flag is unknown
+	 */
+	public boolean set(String flag) {
+		switch (flag) {
+		case "-tokens" :
+			tokens = true;
+			break;
+			
+		case "-O" :
+			optimize = true;
+			break;
+		
+		case "-xml" :
+			xml = true;
+			break;
+		
+		case "-whole" :
+			whole = true;
+			break;
+		
+		default :
+			if (flag.startsWith("-j"))
+				return setJobs(flag.substring(2));
+			if (flag.equals("-cache") || flag.startsWith("-cache=")) {
+				cache = flag.substring(Math.min(flag.length(), 7));
+				return true;
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	/** Sets the no. of parallel jobs from the digits after -j
+	 * @param n empty for one job per processor
+	 * @return false if n is not a positive number
+	 */
+	private boolean setJobs(String n) {
+		if (n.isEmpty()) {
+			jobs = Runtime.getRuntime().availableProcessors();
+			return true;
+		}
+		
+		try {
+			jobs = Integer.parseInt(n);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return jobs > 0;
+	}
+	
+	/** Returns the options the generated VM code depends on, for the build cache key
+	 * @return String
+	 */
+	public String key() {
+		return "JackCompiler " + OUTPUT_VERSION + (optimize ? " -O" : "") + (whole ? " -whole" : "");
+	}
+	
+	/** Returns the list of flags for the usage message
+	 * @return String
+	 */
+	public static String usage() {
+		return "  -tokens    write the token list filenameT.xml\n"
+			 + "  -O         optimize the generated VM code\n"
+			 + "  -xml       write the parse tree filename.xml\n"
+			 + "  -j[n]      compile n classes in parallel, one per processor if n is left out\n"
+			 + "  -cache[=d] reuse the .vm of unchanged classes, cached in directory d, .jackcache by default\n"
+			 + "  -whole     index the subroutines of all classes in the directory, and check calls against them\n";
+	}
+}
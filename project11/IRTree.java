@@ -0,0 +1,326 @@
+import java.util.Arrays;
+
+/** Intermediate representation of one Jack class, built by CompilationEngine
+ *  while parsing and lowered to VM code by VMGenerator.
+ *  Nodes are kept in parallel arrays, a node is an index into them.
+ *  Each node has a kind, up to four int operands a..d, a next link that
+ *  chains the members of a list, and an optional text.
+ *  Symbols are resolved by the parser into a segment and an index.
+ *
+ *  kind        a          b          c             d           text
+ *  CLASS       class id   nFields    first member  nStatics
+ *  VAR_DEC     keyword    nNames                               comment
+ *  SUBROUTINE  keyword    name id    first VAR_DEC first stmt  comment
+ *  LET         segment    index      index expr    value expr  comment
+ *  DO          call expr                                       comment
+ *  WHILE       cond expr  first stmt                           comment
+ *  IF          cond expr  first stmt first else                comment
+ *  RETURN      expr       void
+ *  INT         value
+ *  STRING                                                      value
+ *  KEYWORD     TRUE, FALSE, NULL or THIS
+ *  VAR         segment    index
+ *  INDEX       segment    index      index expr
+ *  UNARY       op         operand
+ *  BINARY      op         left       right
+ *  CALL        class id   sub id     first arg     receiver
+ *
+ *  Missing operands are -1. A call has no receiver when it is a function or
+ *  constructor call, otherwise the receiver is a VAR or THIS node pushed as
+ *  argument 0.
+ */
+public class IRTree {
+	
+	// node kinds
+	public final static int CLASS		= 1;
+	public final static int VAR_DEC		= 2;
+	public final static int SUBROUTINE	= 3;
+	public final static int LET			= 4;
+	public final static int DO			= 5;
+	public final static int WHILE		= 6;
+	public final static int IF			= 7;
+	public final static int RETURN		= 8;
+	public final static int INT			= 9;
+	public final static int STRING		= 10;
+	public final static int KEYWORD		= 11;
+	public final static int VAR			= 12;
+	public final static int INDEX		= 13;
+	public final static int UNARY		= 14;
+	public final static int BINARY		= 15;
+	public final static int CALL		= 16;
+	
+	// segments of resolved symbols
+	public final static int NONE		= 0;	// not defined
+	public final static int STATIC		= 1;
+	public final static int FIELD		= 2;
+	public final static int ARG			= 3;
+	public final static int LOCAL		= 4;
+	
+	// VM segment name of each segment constant
+	private final static String[] segments = { "NONE", "static", "this", "argument", "local" };
+	
+	private int[] kinds;
+	private int[] as, bs, cs, ds;
+	private int[] nexts;
+	private String[] texts;
+	private int count = 0;
+	
+	/** Creates an empty tree
+	 */
+	public IRTree() {
+		alloc(256);
+	}
+	
+	/** Allocates room for n nodes
+	 * @param n
+	 */
+	private void alloc(int n) {
+		kinds = new int[n];
+		as    = new int[n];
+		bs    = new int[n];
+		cs    = new int[n];
+		ds    = new int[n];
+		nexts = new int[n];
+		texts = new String[n];
+	}
+	
+	/** Adds a node, doubling the arrays when full
+	 * @param kind
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @param d
+	 * @return node
+	 */
+	public int add(int kind, int a, int b, int c, int d) {
+		if (count == kinds.length) {
+			int n = count * 2;
+			kinds = Arrays.copyOf(kinds, n);
+			as    = Arrays.copyOf(as, n);
+			bs    = Arrays.copyOf(bs, n);
+			cs    = Arrays.copyOf(cs, n);
+			ds    = Arrays.copyOf(ds, n);
+			nexts = Arrays.copyOf(nexts, n);
+			texts = Arrays.copyOf(texts, n);
+		}
+		kinds[count] = kind;
+		as[count]    = a;
+		bs[count]    = b;
+		cs[count]    = c;
+		ds[count]    = d;
+		nexts[count] = -1;
+		texts[count] = null;
+		return count++;
+	}
+	
+	/** Adds a node with a text
+	 * @param kind
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @param d
+	 * @param text
+	 * @return node
+	 */
+	public int add(int kind, int a, int b, int c, int d, String text) {
+		int n = add(kind, a, b, c, d);
+		texts[n] = text;
+		return n;
+	}
+	
+	public int kind(int n) {
+		return kinds[n];
+	}
+	
+	public int a(int n) {
+		return as[n];
+	}
+	
+	public int b(int n) {
+		return bs[n];
+	}
+	
+	public int c(int n) {
+		return cs[n];
+	}
+	
+	public int d(int n) {
+		return ds[n];
+	}
+	
+	public String text(int n) {
+		return texts[n];
+	}
+	
+	/** Returns the node after n in its list
+	 * @param n
+	 * @return node, -1 at the end of the list
+	 */
+	public int next(int n) {
+		return nexts[n];
+	}
+	
+	/** Overwrites node n, keeping its place in its list
+	 * @param n
+	 * @param kind
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @param d
+	 */
+	public void set(int n, int kind, int a, int b, int c, int d) {
+		kinds[n] = kind;
+		as[n]    = a;
+		bs[n]    = b;
+		cs[n]    = c;
+		ds[n]    = d;
+		texts[n] = null;
+	}
+	
+	/** Overwrites node n with a copy of node from, keeping n's place in its list.
+	 *  Used to replace an expression by one of its operands.
+	 * @param n
+	 * @param from
+	 */
+	public void replace(int n, int from) {
+		set(n, kinds[from], as[from], bs[from], cs[from], ds[from]);
+		texts[n] = texts[from];
+	}
+	
+	public void setB(int n, int b) {
+		bs[n] = b;
+	}
+	
+	public void setC(int n, int c) {
+		cs[n] = c;
+	}
+	
+	public void setD(int n, int d) {
+		ds[n] = d;
+	}
+	
+	/** Ends a list after node n, or links it to the node given
+	 * @param n
+	 * @param next -1 to end the list at n
+	 */
+	public void setNext(int n, int next) {
+		nexts[n] = next;
+	}
+	
+	/** Links node n after node last in a list
+	 * @param last end of the list, -1 if the list is empty
+	 * @param n
+	 * @return n, the new end of the list
+	 */
+	public int link(int last, int n) {
+		if (last >= 0 && n >= 0)
+			nexts[last] = n;
+		return (n >= 0) ? n : last;
+	}
+	
+	/** Returns the no. of nodes in the list starting at n
+	 * @param n
+	 * @return int
+	 */
+	public int length(int n) {
+		int len = 0;
+		for (; n >= 0; n = nexts[n])
+			len++;
+		return len;
+	}
+	
+	/** Returns the no. of nodes in the tree
+	 * @return int
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/** Is the node a constant? Integer constants, true, false and null are.
+	 * @param node
+	 * @return boolean
+	 */
+	public boolean isConst(int node) {
+		if (node < 0)
+			return false;
+		
+		switch (kinds[node]) {
+		case INT :
+			return true;
+		case KEYWORD :
+			return as[node] != JackTokenizer.THIS;
+		default :
+			return false;
+		}
+	}
+	
+	/** Returns the 16 bit value of a constant: true is -1, false and null are 0
+	 * @param node INT or KEYWORD
+	 * @return int -32768..32767
+	 */
+	public int valueOf(int node) {
+		if (kinds[node] == INT)
+			return (short) as[node];
+		return (as[node] == JackTokenizer.TRUE) ? -1 : 0;
+	}
+	
+	/** Is the value of the expression always true or false, -1 or 0?
+	 *  Comparisons are, and so are &, | and ~ of values that are.
+	 * @param node
+	 * @return boolean
+	 */
+	public boolean isBoolean(int node) {
+		if (node < 0)
+			return false;
+		
+		switch (kinds[node]) {
+		case INT : case KEYWORD :
+			return isConst(node) && (valueOf(node) == 0 || valueOf(node) == -1);
+		case UNARY :
+			return as[node] == '~' && isBoolean(bs[node]);
+		case BINARY :
+			switch (as[node]) {
+			case '<' : case '>' : case '=' :
+				return true;
+			case '&' : case '|' :
+				return isBoolean(bs[node]) && isBoolean(cs[node]);
+			default :
+				return false;
+			}
+		default :
+			return false;
+		}
+	}
+	
+	/** Has evaluating the expression no side effects?
+	 *  Calls may change anything, and Math.divide may stop on division by 0.
+	 *  String constants allocate memory.
+	 * @param node
+	 * @return boolean
+	 */
+	public boolean isPure(int node) {
+		if (node < 0)
+			return true;
+		
+		switch (kinds[node]) {
+		case INT : case KEYWORD : case VAR :
+			return true;
+		case INDEX :
+			return isPure(cs[node]);
+		case UNARY :
+			return isPure(bs[node]);
+		case BINARY :
+			return as[node] != '/' && isPure(bs[node]) && isPure(cs[node]);
+		default :
+			return false;
+		}
+	}
+	
+	/** Returns the VM segment name of a segment constant
+	 * @param segment
+	 * @return String
+	 */
+	public static String segmentName(int segment) {
+		return segments[segment];
+	}
+}
@@ -1,14 +1,64 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class JackCompiler {
 	
+	private NameTable names = new NameTable();	// one dictionary for all classes in the build
+	private CompilerOptions options = new CompilerOptions();
+	private BuildCache cache = null;			// null unless -cache
+	private SubroutineIndex index = null;		// null unless -whole
+	private PrintStream out;					// console output of the build
+	
+	private JackCompiler(PrintStream out) {
+		this.out = out;
+	}
+	
 	public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java JackCompiler <filename.jack or dirname>");
-            System.exit(-1);
+		int status = run(args, System.out, System.err);
+		
+		if (status != 0)
+			System.exit(status);
+	}
+	
+	/** Runs one build with the given command line. Each build has its own
+	 *  options, name table and cache, so builds can run one after another
+	 *  or side by side in one JVM, as in the CompilerDaemon.
+	 * @param args command line
+	 * @param out console output
+	 * @param err usage message
+	 * @return int exit status, -1 for a usage error
+	 */
+	public static int run(String[] args, PrintStream out, PrintStream err) {
+		return new JackCompiler(out).build(args, err);
+	}
+	
+	private int build(String[] args, PrintStream err) {
+        String path 		= null;
+        
+        for (String arg : args) {
+        	if (arg.startsWith("-") && options.set(arg))
+        		continue;
+        	if (arg.startsWith("-") || path != null)
+        		path = "";				// unknown flag or more than one path
+        	else
+        		path = arg;
+        }
+        
+        if (path == null || path.isEmpty()) {
+            err.println("Usage: java JackCompiler [options] <filename.jack or dirname>");
+            err.print(CompilerOptions.usage());
+            return -1;
         }
         
-        String path 		= args[0];
 		File file 			= new File(path);
 		
         boolean exists 		= file.exists();      // Check if the file exists
@@ -16,31 +66,167 @@ public class JackCompiler {
         boolean isFile 		= file.isFile();      // Check if it's a regular file
         
         if (exists) {
+        	if (options.cache != null)
+        		OpenCache(file);
+        	
+        	if (options.whole)
+        		IndexProgram(isDirectory ? file : file.getAbsoluteFile().getParentFile());
+    		
     		// open filename.jack or directoryName for writing, one xml for each jack file.
         	if (isDirectory) {
         		File[] directoryListing = file.listFiles();
         		if (directoryListing != null) {
-        			for (File child : directoryListing) {
-        				ProcessFile(child);
+        			Arrays.sort(directoryListing);		// compile and report in file name order
+        			
+        			if (options.jobs > 1)
+        				ProcessParallel(directoryListing);
+        			else {
+        				for (File child : directoryListing) {
+        					ProcessFile(child, out);
+        				}
         			}
       		    }
         	}
         	else if (isFile) {
-        		ProcessFile(file);
+        		ProcessFile(file, out);
         	}
         	
     		//.Close();
+        	
+        	if (cache != null) {
+        		cache.evict();
+        		out.println(cache.stats());
+        	}
         }
         else
-        	System.out.println("File does not exist.");
+        	out.println("File does not exist.");
+        
+        return 0;
+	}
+	
+	/** Compiles the files on a work stealing pool of options.jobs threads.
+	 *  Each class compiles independently, into its own .vm file. The console
+	 *  output of each class is buffered and printed in file order, as soon
+	 *  as the class and all the classes before it are done, so the output
+	 *  is the same as in a sequential build.
+	 * @param files
+	 */
+	private void ProcessParallel(File[] files) {
+		ForkJoinPool pool = new ForkJoinPool(options.jobs);
+		List<ForkJoinTask<String>> results = new ArrayList<ForkJoinTask<String>>();
+		
+		try {
+			for (File child : files)
+				results.add(pool.submit(() -> ProcessBuffered(child)));
+			
+			for (ForkJoinTask<String> result : results)
+				out.print(result.join());
+		} finally {
+			pool.shutdown();
+		}
 	}
 	
-	private static void ProcessFile(File file) {
+	/** Compiles a file, buffering its console output
+	 * @param file
+	 * @return the console output
+	 */
+	private String ProcessBuffered(File file) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(buf);
+		
+		ProcessFile(file, out);
+		
+		out.flush();
+		return buf.toString();
+	}
+	
+	/** Opens the build cache given by -cache. The cache holds only .vm code,
+	 *  so it is not used when the token list or the parse tree is written.
+	 * @param file the file or directory compiled
+	 */
+	private void OpenCache(File file) {
+		File dir;
+		
+		if (options.tokens || options.xml) {
+			out.println("Build cache not used with -tokens or -xml.");
+			return;
+		}
+		
+		if (!options.cache.isEmpty())
+			dir = new File(options.cache);
+		else if (file.isDirectory())
+			dir = new File(file, ".jackcache");
+		else
+			dir = new File(file.getAbsoluteFile().getParentFile(), ".jackcache");
+		
+		cache = new BuildCache(dir, BuildCache.MAX_BYTES, out);
+	}
+	
+	/** Indexes the subroutines of all the classes of the program, before
+	 *  any class is compiled. A single file is compiled with the classes
+	 *  of its directory.
+	 * @param dir
+	 */
+	private void IndexProgram(File dir) {
+		File[] files = dir.listFiles();
+		
+		index = new SubroutineIndex(names);
+		
+		if (files != null) {
+			Arrays.sort(files);
+			index.index(files, options.jobs, cache, out);
+		}
+	}
+	
+	private void ProcessFile(File file, PrintStream out) {
 		String path = file.getPath();
 		String 	ext = path.substring(path.lastIndexOf(".") + 1);
 		
 		if (!ext.toLowerCase().equals("jack")) return;
+		
+		if (cache != null)
+			ProcessCached(file, out);
+		else
+			new CompilationEngine(path, names, options, out, index);
+	}
 	
-		new CompilationEngine(path);
+	/** Compiles a file through the build cache. On a hit the cached .vm is
+	 *  written and the cached console output printed, without tokenizing or
+	 *  parsing the class. On a miss the class is compiled and both are stored.
+	 *  The key is the source text, the file name and the options, and with
+	 *  -whole the signatures of the program, which calls are compiled against.
+	 * @param file
+	 * @param out
+	 */
+	private void ProcessCached(File file, PrintStream out) {
+		String path = file.getPath();
+		File vm = new File(path.substring(0, path.lastIndexOf(".")) + ".vm");
+		String key;
+		String[] entry;
+		
+		try {
+			key = BuildCache.key(Files.readAllBytes(file.toPath()), file.getName(), options.key(),
+					index != null ? index.digest() : "");
+			entry = cache.get(key);
+			
+			if (entry != null) {
+				Files.write(vm.toPath(), entry[0].getBytes(StandardCharsets.UTF_8));
+				out.print(entry[1]);
+				return;
+			}
+			
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			PrintStream log = new PrintStream(buf);
+			
+			new CompilationEngine(path, names, options, log, index);
+			
+			log.flush();
+			out.print(buf.toString());
+			
+			cache.put(key, new String(Files.readAllBytes(vm.toPath()), StandardCharsets.UTF_8), buf.toString());
+			
+		} catch (IOException e) {
+			e.printStackTrace(out);
+		}
 	}
 }
@@ -1,27 +1,11 @@
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /** Handles the compiler's input
  *  Ignores white space,
@@ -30,14 +14,37 @@ import org.xml.sax.SAXException;
  */
 public class JackTokenizer {
 	
-	private FileWriter fw;
-	private String result;
-	private String currentToken;
-	private Stream<String> stream;
-	private ArrayList<String> tokens;
+	private Writer fw;				// filenameT.xml, null when not written
+	private StringBuilder xml;		// reused to format one token for filenameT.xml
+	private NameTable names;		// interned identifier names
+	private PrintStream out = System.out;	// where I/O errors are reported
 	private int tokenPos = 0;		// current Token position in output file filenameT.xml
+	private int current  = -1;		// index of the current token, -1 before the first advance()
 	private boolean debug = false;	// add syntax highlight for debugging set to true.
 	
+	// token store. Token i is described by entry slot(i) of each array.
+	// In streaming mode the arrays are a ring holding the last window tokens,
+	// which are lexed on demand; otherwise they hold the whole file.
+	private SourceBuffer src;		// source text the token offsets point into
+	private int scanPos = 0;		// offset in src where lexing resumes
+	private int scanLine = 1;		// line no. at scanPos
+	private int lineStart = 0;		// offset in src of the first char of scanLine
+	private int window  = 0;		// ring capacity, a power of 2. 0 keeps the full token list
+	private int mask    = -1;		// maps token index to ring slot
+	private int[] kinds;			// token type: KEYWORD, SYMBOL, IDENTIFIER, INT_CONST, STRING_CONST
+	private int[] codes;			// keyword constant (CLASS..THIS), symbol character or identifier name id
+	private int[] starts;			// offset of first char of token value in src
+	private int[] ends;				// offset after last char of token value in src
+	private int[] ints;				// pre-parsed value of integer constants
+	private int[] pos;				// source position: line << COL_BITS | column, both from 1
+	private int count = 0;			// no. of tokens lexed so far
+	
+	public final static int WINDOW = 1024;	// default look ahead window of the streaming mode
+	public final static int MAX_INT = 32767;	// largest integer constant
+	
+	private final static int COL_BITS = 12;	// columns past 4095 are reported as 4095
+	private final static int COL_MASK = (1 << COL_BITS) - 1;
+	
 	// token types
 	public final static int KEYWORD 	 = 1;
 	public final static int SYMBOL 		 = 2;
@@ -74,122 +81,522 @@ public class JackTokenizer {
 			"var", "int", "char", "boolean", "void", "true", "false", "null", 
 			"this", "let", "do", "if", "else", "while", "return"));
 	
+	// keyword constants, in the same order as the keywords list
+	static final int[] keywordCodes = {
+			CLASS, CONSTRUCTOR, FUNCTION, METHOD, FIELD, STATIC,
+			VAR, INT, CHAR, BOOLEAN, VOID, TRUE, FALSE, NULL,
+			THIS, LET, DO, IF, ELSE, WHILE, RETURN };
+	
+	// keywords by perfect hash. keywordHash() gives a different slot for each
+	// of the 21 keywords, so one probe and one compare classify a word.
+	private final static char[][] kwText = new char[32][];
+	private final static int[]    kwCode = new int[32];
+	
+	static {
+		for (int k = 0; k < keywords.size(); k++) {
+			char[] w = keywords.get(k).toCharArray();
+			int h = keywordHash(w[0], w[1], w.length);
+			kwText[h] = w;
+			kwCode[h] = keywordCodes[k];
+		}
+	}
+	
+	// character classes used by the scanner
+	private final static byte C_OTHER	= 0;	// not part of any token, skipped
+	private final static byte C_SPACE	= 1;
+	private final static byte C_LETTER	= 2;	// a-z, A-Z and _
+	private final static byte C_DIGIT	= 3;
+	private final static byte C_SYMBOL	= 4;
+	private final static byte C_QUOTE	= 5;
+	
+	// character class of each ASCII character
+	private final static byte[] charClass = new byte[128];
+	
+	static {
+		for (char c = 'a'; c <= 'z'; c++)
+			charClass[c] = C_LETTER;
+		for (char c = 'A'; c <= 'Z'; c++)
+			charClass[c] = C_LETTER;
+		for (char c = '0'; c <= '9'; c++)
+			charClass[c] = C_DIGIT;
+		for (char c : "{}()[].,;+-*/&|<>=~".toCharArray())
+			charClass[c] = C_SYMBOL;
+		charClass['_']  = C_LETTER;
+		charClass['"']  = C_QUOTE;
+		charClass[' ']  = C_SPACE;
+		charClass['\t'] = C_SPACE;
+		charClass['\n'] = C_SPACE;
+		charClass['\r'] = C_SPACE;
+		charClass['\f'] = C_SPACE;
+	}
+	
 	/** Opens the input .jack file and gets ready to tokenize it.
 	 */
 	public JackTokenizer(String filename) {
+		this(filename, new NameTable());
+	}
+	
+	/** Opens the input .jack file and gets ready to tokenize it.
+	 *  Identifiers are interned in the given name table.
+	 *  The whole file is tokenized up front.
+	 */
+	public JackTokenizer(String filename, NameTable names) {
+		this(filename, names, 0, false);
+	}
+	
+	/** Opens the input .jack file and gets ready to tokenize it.
+	 *  Identifiers are interned in the given name table.
+	 *  With a window > 0, tokens are lexed on demand into a ring buffer of
+	 *  that many tokens (rounded up to a power of 2), so memory use does not
+	 *  depend on the source size. Look ahead is then limited to the window.
+	 *  With tokensXml set, the token list is also written to filenameT.xml.
+	 *  Call close() when done so that the rest of filenameT.xml gets written.
+	 */
+	public JackTokenizer(String filename, NameTable names, int window, boolean tokensXml) {
+		this(filename, names, window, tokensXml, System.out);
+	}
+	
+	/** Opens the input .jack file as above, reporting I/O errors to the
+	 *  given stream, e.g. the console output of one build in the CompilerDaemon.
+	 */
+	public JackTokenizer(String filename, NameTable names, int window, boolean tokensXml, PrintStream out) {
 		
-		tokens = new ArrayList<String>();
+		this.names = names;
+		this.out = out;
 		
 		openStream(filename);
 		
-		doStream();
+		if (tokensXml)
+			writeFile(filename);
 		
-		writeFile(filename);
+		doStream(window);
 	}
 	
-	private void doStream() {
+	/** Tokenizes source text that is already in memory, e.g. an editor buffer.
+	 *  The whole text is tokenized up front and no filenameT.xml is written,
+	 *  so relex() can later be called as the text is edited.
+	 */
+	public JackTokenizer(SourceBuffer src, NameTable names) {
 		
-		result = "";
-        
-        stream.forEach(s -> {
-        	String str = removeComments(s);
-        	if (str != "")
-        		result += str.replaceAll("\\s\\s+", " ");	// remove additional spaces
-        });
-
-        removeMultilineComments();
+		this.names = names;
+		this.src = src;
+		
+		doStream(0);
+	}
+	
+	/** Prepares the token store. Without a window the whole mapped source
+	 *  file is tokenized in source order. The token store is sized up front
+	 *  from the source length, so lexing is a single linear pass with no
+	 *  re-copying of the store.
+	 * @param w look ahead window, 0 for the full token list
+	 */
+	private void doStream(int w) {
 		
-		tokenize(result);
+		if (w > 0) {
+			window = Integer.highestOneBit(w - 1) << 1;
+			if (window < 2)
+				window = 2;
+			mask = window - 1;
+			allocTokens(window);
+			return;
+		}
+		
+		if (src == null) {
+			allocTokens(0);
+			closeFile();
+			return;
+		}
+		
+		allocTokens(estimateTokens(src.length()));
+		
+		while (lexNext())
+			;
+	}
+	
+	/** Estimates the no. of tokens in a source of the given length.
+	 *  Jack source averages well over 4 characters per token once
+	 *  white space and comments are counted.
+	 * @param length
+	 * @return int
+	 */
+	private static int estimateTokens(int length) {
+		return length / 4 + 16;
 	}
 	
-	/** opens file as input stream and trim trailing spaces,
-	 *  removes empty lines and whole line comments. 
+	/** Maps the source file into memory. The lexer reads it in place,
+	 *  no per line Strings are created.
 	 * @param filename
 	 */
 	private void openStream(String filename) {
     	try {
-			stream = Files
-					.lines(Paths.get(filename))
-			        .parallel() // for parallel processing 
-			        .map(String::trim) // to trim line  
-					.filter(p -> !p.matches("^(\\s*|//.*|\\n)$"));                   
-			        
+			src = new SourceBuffer(filename);
 		} catch (IOException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 	
-	/** Removes comments after statements from line
-	 *  Works only on one line at a time. Do not use it for concatenated code string.
-	 * @param c
-	 */
-    public static String removeComments(String c) {
-		// remove comments
-    	int index = c.indexOf("//");	// removes any leftover '//' comments
-		if (index != -1)
-			c = c.substring(0, index).trim();
-    	return c;
+    /** Scans the source text from where the last call stopped, left to right,
+     *  until one more token is added to the token store.
+     *  Each character is classified through the charClass table, so white space,
+     *  line comments and block comments are skipped inline as they are met.
+     * @return false at end of file
+     */
+    private boolean lexNext() {
+    	SourceBuffer c = src;
+    	int n = (c == null) ? 0 : c.length();
+    	int i = scanPos;
+    	int last = count;
+    	int start, val;
+    	char ch;
+    	
+    	while (i < n && count == last) {
+    		ch = c.charAt(i);
+    		
+    		switch (classOf(ch)) {
+    		case C_LETTER :				// keyword or identifier
+    			start = i;
+    			do
+    				i++;
+    			while (i < n && (classOf(c.charAt(i)) == C_LETTER || classOf(c.charAt(i)) == C_DIGIT));
+    			addWord(start, i);
+    			break;
+    			
+    		case C_DIGIT :				// integer constant
+    			start = i;
+    			val = 0;
+    			do {
+    				if (val <= MAX_INT)		// stops growing once out of range, so it cannot overflow
+    					val = val * 10 + (c.charAt(i) - '0');
+    				i++;
+    			} while (i < n && classOf(c.charAt(i)) == C_DIGIT);
+    			if (val > MAX_INT) {
+    				out.format("%d:%d. Error : Integer constant %s is out of range 0..%d.\n",
+    						scanLine, start - lineStart + 1, c.substring(start, i), MAX_INT);
+    				val = MAX_INT;
+    			}
+    			addToken(INT_CONST, 0, start, i, val);
+    			break;
+    			
+    		case C_QUOTE :				// string constant, may not span lines
+    			start = ++i;
+    			while (i < n && c.charAt(i) != '"' && c.charAt(i) != '\n')
+    				i++;
+    			addToken(STRING_CONST, 0, start, i, 0);
+    			if (i < n && c.charAt(i) == '"')
+    				i++;
+    			break;
+    			
+    		case C_SYMBOL :
+    			if (ch == '/' && i + 1 < n && c.charAt(i + 1) == '/') {			// comment to end of line
+    				i += 2;
+    				while (i < n && c.charAt(i) != '\n')
+    					i++;
+    			}
+    			else if (ch == '/' && i + 1 < n && c.charAt(i + 1) == '*') {		// /* */ or /** */ comment
+    				i += 2;
+    				while (i < n && !(c.charAt(i) == '*' && i + 1 < n && c.charAt(i + 1) == '/')) {
+    					if (c.charAt(i) == '\n')
+    						newLine(i);
+    					i++;
+    				}
+    				i = Math.min(i + 2, n);
+    			}
+    			else {
+    				addToken(SYMBOL, ch, i, i + 1, 0);
+    				i++;
+    			}
+    			break;
+    			
+    		default :					// white space and stray characters
+    			if (ch == '\n')
+    				newLine(i);
+    			i++;
+    		}
+    	}
+    	
+    	scanPos = i;
+    	
+    	if (count == last) {
+    		closeFile();				// end of file
+    		return false;
+    	}
+    	return true;
     }
     
-    /** Removes multi-line comments, works with strings.
-     *  Before calling this method, collect all lines into a single string as input.
+    /** Records that the char at offset i ends a line
+     * @param i
      */
-    private void removeMultilineComments() {
-    	// "/(?:/.*?$|\\*[*]*[^\\*/]*[*]*\\*/)"
-		final String regex = "/\\*(.|[\r\n])*?\\*/";
-		final String subst = "";
-	
-		final Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE);
-		final Matcher matcher = pattern.matcher(result);
-	
-		// The substituted value will be contained in the result variable
-		result = matcher.replaceAll(subst);
-	
-		//System.out.println("Substitution result: " + result);
+    private void newLine(int i) {
+    	scanLine++;
+    	lineStart = i + 1;
+    }
+    
+    /** Lexes ahead until token i is in the token store, as far as the
+     *  look ahead window allows. In streaming mode the current token is
+     *  never overwritten.
+     * @param i token index
+     * @return true if token i is available
+     */
+    private boolean fill(int i) {
+    	while (count <= i) {
+    		if (window > 0 && count - Math.max(current, 0) >= window)
+    			return false;			// window is full
+    		if (!lexNext())
+    			return false;
+    	}
+    	return i >= 0 && (window == 0 || i >= count - window);
+    }
+    
+    /** Returns the store slot of token i
+     * @param i token index
+     * @return int
+     */
+    private int slot(int i) {
+    	return (window > 0) ? (i & mask) : i;
     }
     
-    /** Prepares input stream as an ArrayList of tokens
+    /** Returns the character class of c
      * @param c
+     * @return C_OTHER, C_SPACE, C_LETTER, C_DIGIT, C_SYMBOL, C_QUOTE
      */
-    private void tokenize(String c) {
-		String h, type;
-		String s1 = "\\{|\\}|\\[|\\]|\\(|\\)|\\.|\\,|\\;|\\+|\\-|\\*|\\/|\\&|\\||\\<|\\>|\\=|\\~";	// symbol
-		String s2 = "\"[^\"]*\"|\'\\\\?[^\']?\'";		// single or double quoted string
-		String s3 = "\\d+";								// numeric
-		String s4 = "\\w+|[a-zA-Z](\\w*|\\_*|\\w*)";	// word or identifier
-		Pattern p = Pattern.compile('(' + s1 + '|' + s2 + '|' + s3 + '|' + s4 + ')');
-		Matcher m = p.matcher(c);
-		
-		while (m.find()) {
-			h = c.substring(m.start(), m.end());
-			
-			type = "";
-			if (keywords.contains(h))
-				type = "keyword";
-			else if (h.matches('(' + s1 + ')'))
-				type = "symbol";
-			else if (h.matches('(' + s2 + ')')) {
-				type = "stringConstant";
-				h = h.substring(1, h.length()-1);	// removes enclosing "" or ''
-			}
-			else if (h.matches('(' + s3 + ')'))
-				type = "integerConstant";
-			else if (h.matches('(' + s4 + ')'))
-				type = "identifier";
-			
-			if (h != null)
-				tokens.add("<" + type + "> " + escape(h) + " </" + type + ">");
-			
-			if (debug)
-				syntaxHighlight(h, type);
-		}
+    private static byte classOf(char c) {
+    	return c < 128 ? charClass[c] : C_OTHER;
+    }
+    
+    /** Adds the word src[start..end) as a keyword or identifier token
+     * @param start
+     * @param end
+     */
+    private void addWord(int start, int end) {
+    	int code = keywordCode(start, end);
+    	
+    	if (code != -1)
+    		addToken(KEYWORD, code, start, end, 0);
+    	else
+    		addToken(IDENTIFIER, names.intern(src, start, end), start, end, 0);
+    }
+    
+    /** Returns the keyword constant of the word src[start..end),
+     *  looked up by perfect hash straight from the source characters.
+     * @param start
+     * @param end
+     * @return CLASS..THIS, -1 if the word is not a keyword
+     */
+    private int keywordCode(int start, int end) {
+    	int len = end - start;
+    	int h;
+    	char[] w;
+    	
+    	if (len < 2 || len > 11)	// keywords are 2 to 11 chars long
+    		return -1;
+    	
+    	h = keywordHash(src.charAt(start), src.charAt(start + 1), len);
+    	w = kwText[h];
+    	
+    	if (w == null || w.length != len)
+    		return -1;
+    	
+    	for (int i = 0; i < len; i++)
+    		if (w[i] != src.charAt(start + i))
+    			return -1;
+    	
+    	return kwCode[h];
+    }
+    
+    /** Hash of a word from its first two chars and length, unique for each keyword
+     * @param c0
+     * @param c1
+     * @param len
+     * @return int 0..31
+     */
+    private static int keywordHash(char c0, char c1, int len) {
+    	return (2 * c0 + 14 * c1 + 5 * len) & 31;
+    }
+    
+    /** Allocates an empty token store with room for n tokens
+     * @param n
+     */
+    private void allocTokens(int n) {
+    	kinds  = new int[n];
+    	codes  = new int[n];
+    	starts = new int[n];
+    	ends   = new int[n];
+    	ints   = new int[n];
+    	pos    = new int[n];
+    	count  = 0;
+    }
+    
+    /** Appends a token to the token store, doubling its capacity when full.
+     * @param kind
+     * @param code
+     * @param start
+     * @param end
+     * @param val
+     */
+    private void addToken(int kind, int code, int start, int end, int val) {
+    	int k = slot(count);
+    	
+    	if (window == 0 && count == kinds.length) {
+    		int n  = count * 2 + 16;
+    		kinds  = Arrays.copyOf(kinds, n);
+    		codes  = Arrays.copyOf(codes, n);
+    		starts = Arrays.copyOf(starts, n);
+    		ends   = Arrays.copyOf(ends, n);
+    		ints   = Arrays.copyOf(ints, n);
+    		pos    = Arrays.copyOf(pos, n);
+    	}
+    	kinds[k]  = kind;
+    	codes[k]  = code;
+    	starts[k] = start;
+    	ends[k]   = end;
+    	ints[k]   = val;
+    	pos[k]    = (scanLine << COL_BITS) | Math.min(start - lineStart + (kind == STRING_CONST ? 0 : 1), COL_MASK);
+    	
+    	if (debug)
+    		syntaxHighlight(valueOf(count), typeName(kind));
+    	
+    	writeToken(count);
+    	
+    	count++;
+    }
+    
+    /** Re-lexes the source after an edit. Only for the full token list mode.
+     *  The old text src[start..oldEnd) was replaced by edited[start..newEnd).
+     *  Lexing restarts at the end of the last token before the edit and stops
+     *  at the first new token past the edit that starts where an old token
+     *  started, since the text from there on is unchanged. The new tokens are
+     *  spliced in place of the old ones in between, and the tokens after them
+     *  get their offsets and positions shifted. The next advance() returns
+     *  the first token again.
+     * @param edited source text after the edit
+     * @param start offset of the first changed char
+     * @param oldEnd offset after the replaced text in the old source
+     * @param newEnd offset after the inserted text in the edited source
+     * @return no. of tokens spliced in, -1 in streaming mode
+     */
+    public int relex(SourceBuffer edited, int start, int oldEnd, int newEnd) {
+    	int oldCount = count;
+    	int delta = newEnd - oldEnd;
+    	int a, j, m, lo, hi, mid, s;
+    	int lineDelta = 0, colDelta = 0, oldLine = -1;
+    	boolean synced = false;
+    	
+    	if (window > 0)
+    		return -1;
+    		
+    	// a = first token ending at or after the edit, the ones before it are unchanged
+    	lo = 0;
+    	hi = count;
+    	while (lo < hi) {
+    		mid = (lo + hi) >>> 1;
+    		if (rawEnd(mid) < start)
+    			lo = mid + 1;
+    		else
+    			hi = mid;
+    	}
+    	a = lo;
+    	
+    	if (a == 0) {
+    		scanPos  = 0;
+    		scanLine = 1;
+    	}
+    	else {
+    		scanPos  = rawEnd(a - 1);
+    		scanLine = pos[a - 1] >>> COL_BITS;
+    	}
+    	lineStart = scanPos;
+    	while (lineStart > 0 && edited.charAt(lineStart - 1) != '\n')
+    		lineStart--;
+    		
+    	// lex the new tokens after the old ones, until one lines up with an old token
+    	src = edited;
+    	j = a;
+    	while (lexNext()) {
+    		s = rawStart(count - 1);
+    		if (s < newEnd)
+    			continue;
+    		while (j < oldCount && rawStart(j) + delta < s)
+    			j++;
+    		if (j < oldCount && rawStart(j) + delta == s && kinds[j] == kinds[count - 1]) {
+    			oldLine   = pos[j] >>> COL_BITS;
+    			lineDelta = (pos[count - 1] >>> COL_BITS) - oldLine;
+    			colDelta  = (pos[count - 1] & COL_MASK) - (pos[j] & COL_MASK);
+    			synced = true;
+    			break;
+    		}
+    	}
+    	
+    	if (synced)
+    		m = count - 1 - oldCount;	// the last token lexed is old token j
+    	else {
+    		m = count - oldCount;
+    		j = oldCount;
+    	}
+    	
+    	// splice: old tokens [0..a), new tokens, old tokens [j..oldCount)
+    	int[][] added = {
+    			Arrays.copyOfRange(kinds, oldCount, oldCount + m),
+    			Arrays.copyOfRange(codes, oldCount, oldCount + m),
+    			Arrays.copyOfRange(starts, oldCount, oldCount + m),
+    			Arrays.copyOfRange(ends, oldCount, oldCount + m),
+    			Arrays.copyOfRange(ints, oldCount, oldCount + m),
+    			Arrays.copyOfRange(pos, oldCount, oldCount + m) };
+    	int[][] store = { kinds, codes, starts, ends, ints, pos };
+    	
+    	for (int f = 0; f < store.length; f++) {
+    		System.arraycopy(store[f], j, store[f], a + m, oldCount - j);
+    		System.arraycopy(added[f], 0, store[f], a, m);
+    	}
+    	count = a + m + oldCount - j;
+    	
+    	// shift the unchanged tokens after the edit
+    	for (int i = a + m; i < count; i++) {
+    		starts[i] += delta;
+    		ends[i]   += delta;
+    		if ((pos[i] >>> COL_BITS) == oldLine)	// same line as the edit end, column moves too
+    			pos[i] = (pos[i] & ~COL_MASK) | Math.max(1, Math.min((pos[i] & COL_MASK) + colDelta, COL_MASK));
+    		pos[i] += lineDelta << COL_BITS;
+    	}
+    	
+    	scanPos  = src.length();
+    	tokenPos = 0;
+    	current  = -1;
+    	
+    	return m;
+    }
+    
+    /** Returns the offset in src of the first char of token i,
+     *  the opening double quote for string constants.
+     * @param i
+     * @return int
+     */
+    private int rawStart(int i) {
+    	return starts[i] - (kinds[i] == STRING_CONST ? 1 : 0);
+    }
+    
+    /** Returns the offset in src after the last char of token i,
+     *  including the closing double quote of string constants.
+     * @param i
+     * @return int
+     */
+    private int rawEnd(int i) {
+    	if (kinds[i] == STRING_CONST && ends[i] < src.length() && src.charAt(ends[i]) == '"')
+    		return ends[i] + 1;
+    	return ends[i];
+    }
+    
+    /** Returns the no. of tokens lexed so far, all of them in full token list mode
+     * @return int
+     */
+    public int tokenCount() {
+    	return count;
     }
 	
 	/** Are there more tokens in the input?
 	 * @return boolean
 	 */
 	public boolean hasMoreTokens() {
-		if (tokenPos < tokens.size())
+		if (fill(tokenPos))
 			return true;
 		else
 			return false;
@@ -201,36 +608,16 @@ public class JackTokenizer {
 	 */
 	public void advance() {
 		if (hasMoreTokens())
-			currentToken = tokens.get(tokenPos++);
+			current = tokenPos++;
 	}
 	
 	/** Returns the type of the current token, as a constant.
 	 *  @return KEYWORD, SYMBOL, IDENTIFIER, INT_CONST, STRING_CONST
 	 */
 	public int tokenType() {
-		String type = getTokenType();
-		int c = -1;
-		
-		switch(type) {
-		case "keyword" :
-			c = KEYWORD;
-			break;
-		case "symbol" :
-			c = SYMBOL;
-			break;
-		case "identifier" :
-			c = IDENTIFIER;
-			break;
-		case "integerConstant" :
-			c = INT_CONST;
-			break;
-		case "stringConstant" :
-			c = STRING_CONST;
-			break;
-		default:
-			c = 0;
-		}
-		return c;
+		if (current < 0)
+			return 0;
+		return kinds[slot(current)];
 	}
 	
 	/** Returns the keyword which is the current token, as a constant.
@@ -240,80 +627,8 @@ public class JackTokenizer {
 	 *  RETURN, TRUE, FALSE, NULL, THIS
 	 */
 	public int keyWord() {
-		String type = getTokenType();
-		String val  = getTokenVal();
-		int result = -1;
-		
-		if (type.equals("keyword")) {
-			
-			switch (val) {
-			case "class" :
-				result = CLASS;
-				break;
-			case "method" :
-				result = METHOD;
-				break;
-			case "function" :
-				result = FUNCTION;
-				break;
-			case "constructor" :
-				result = CONSTRUCTOR;
-				break;
-			case "int" :
-				result = INT;
-				break;
-			case "boolean" :
-				result = BOOLEAN;
-				break;
-			case "char" :
-				result = CHAR;
-				break;
-			case "void" :
-				result = VOID;
-				break;
-			case "var" :
-				result = VAR;
-				break;
-			case "static" :
-				result = STATIC;
-				break;
-			case "field" :
-				result = FIELD;
-				break;
-			case "let" :
-				result = LET;
-				break;
-			case "do" :
-				result = DO;
-				break;
-			case "if" :
-				result = IF;
-				break;
-			case "else" :
-				result = ELSE;
-				break;
-			case "while" :
-				result = WHILE;
-				break;
-			case "return" :
-				result = RETURN;
-				break;
-			case "true" :
-				result = TRUE;
-				break;
-			case "false" :
-				result = FALSE;
-				break;
-			case "null" :
-				result = NULL;
-				break;
-			case "this" :
-				result = THIS;
-				break;
-			default :
-			}
-			return result;
-		}
+		if (tokenType() == KEYWORD)
+			return codes[slot(current)];
 		else
 			return -1;
 	}
@@ -323,11 +638,8 @@ public class JackTokenizer {
 	 *  @return char
 	 */
 	public char symbol() {
-		String type = getTokenType();
-		char   val  = getTokenVal().charAt(0);
-		
-		if (type.equals("symbol"))
-			return val;
+		if (tokenType() == SYMBOL)
+			return (char) codes[slot(current)];
 		else
 			return '\0';
 	}
@@ -337,11 +649,8 @@ public class JackTokenizer {
 	 * @return string
 	 */
 	public String identifier() {
-		String type = getTokenType();
-		String val  = getTokenVal();
-		
-		if (type.equals("identifier"))
-			return val;
+		if (tokenType() == IDENTIFIER)
+			return tokenVal();
 		else
 			return null;
 	}
@@ -351,11 +660,8 @@ public class JackTokenizer {
 	 * @return int
 	 */
 	public int intVal() {
-		String type = getTokenType();
-		int val     = Integer.parseInt(getTokenVal());
-		
-		if (type.equals("integerConstant"))
-			return val;
+		if (tokenType() == INT_CONST)
+			return ints[slot(current)];
 		else
 			return -1;
 	}
@@ -366,15 +672,55 @@ public class JackTokenizer {
 	 * @return string
 	 */
 	public String stringVal() {
-		String type = getTokenType();
-		String val  = getTokenVal();
-		
-		if (type.equals("stringConstant"))
-			return val;
+		if (tokenType() == STRING_CONST)
+			return tokenVal();
 		else
 			return null;
 	}
 	
+	/** Returns the name id of the current token.
+	 *  Should be called only if tokenType is IDENTIFIER or KEYWORD.
+	 * @return int id in the name table, -1 for other token types
+	 */
+	public int nameId() {
+		switch (tokenType()) {
+		case IDENTIFIER :
+			return codes[slot(current)];
+		case KEYWORD :
+			return codes[slot(current)] - CLASS;	// keywords are interned first, in code order
+		default :
+			return -1;
+		}
+	}
+	
+	/** Returns the name table identifiers are interned in
+	 * @return NameTable
+	 */
+	public NameTable names() {
+		return names;
+	}
+	
+	/** Returns the text of the given keyword constant
+	 * @param code CLASS..THIS
+	 * @return String
+	 */
+	public static String keywordName(int code) {
+		for (int k = 0; k < keywordCodes.length; k++)
+			if (keywordCodes[k] == code)
+				return keywords.get(k);
+		return null;
+	}
+	
+	/** Returns the source text of the current token, whatever its type.
+	 *  String constants are returned without the enclosing double quotes.
+	 * @return string
+	 */
+	public String tokenVal() {
+		if (current < 0)
+			return null;
+		return valueOf(current);
+	}
+	
 	/** Returns the current Token line no.
 	*  @return int
 	*/
@@ -382,44 +728,120 @@ public class JackTokenizer {
 		return tokenPos;
 	}
 	
+	/** Returns the source line of the current token
+	 *  @return int line no. from 1, 0 before the first advance()
+	 */
+	public int line() {
+		if (current < 0)
+			return 0;
+		return pos[slot(current)] >>> COL_BITS;
+	}
+	
+	/** Returns the source column of the current token's first char,
+	 *  the opening double quote for string constants.
+	 *  @return int column from 1, 0 before the first advance()
+	 */
+	public int column() {
+		if (current < 0)
+			return 0;
+		return pos[slot(current)] & COL_MASK;
+	}
+	
 	/** Returns the current token in xml format
 	 *  @return string
 	 */
 	public String getToken() {
-		return currentToken;
+		if (current < 0)
+			return null;
+		return toXml(current);
 	}
 	
 	/** Peeks at n-step look ahead without consuming token
 	 * @param step
-	 * @return String
+	 * @return String token in xml format, null past the end of file or the look ahead window
 	 */
 	public String peekToken(int step) {
-		return tokens.get(tokenPos + step - 1);	// tokenPos already points to next token
+		int i = tokenPos + step - 1;	// tokenPos already points to next token
+		
+		if (!fill(i))
+			return null;
+		return toXml(i);
 	}
 	
-	/** Returns the token type of current token
-	 * @return string
+	/** Returns the type of the token n-step ahead, as a constant.
+	 * @param step
+	 * @return KEYWORD, SYMBOL, IDENTIFIER, INT_CONST, STRING_CONST, 
+	 * 0 past the end of file or the look ahead window
 	 */
-	private String getTokenType() {
-		final Matcher m = Pattern.compile("\\<([^>]*)\\>").matcher(currentToken);
-	    if (m.find())
-	        return m.group(1); // first expression from round brackets (Testing)
-	    else
-	    	return null;
+	public int peekType(int step) {
+		int i = tokenPos + step - 1;
+		
+		if (!fill(i))
+			return 0;
+		return kinds[slot(i)];
 	}
 	
-	/** Returns the value of current token
-	 * @return string
+	/** Returns the character of the token n-step ahead, if it is a symbol.
+	 * @param step
+	 * @return char, '\0' for other token types and past the end of file or the look ahead window
 	 */
-	private String getTokenVal() {
-		/*
-		Matcher m = Pattern.compile("\\>\\s([^<]*)\\s\\<").matcher(currentToken);
-		if (m.find())
-			return m.group(1);
-		else
+	public char peekSymbol(int step) {
+		int i = tokenPos + step - 1;
+		
+		if (!fill(i) || kinds[slot(i)] != SYMBOL)
+			return '\0';
+		return (char) codes[slot(i)];
+	}
+	
+	/** Returns the source text of the token n-step ahead.
+	 * @param step
+	 * @return String, null past the end of file or the look ahead window
+	 */
+	public String peekVal(int step) {
+		int i = tokenPos + step - 1;
+		
+		if (!fill(i))
 			return null;
-		*/
-		return xmlToString(currentToken).trim();
+		return valueOf(i);
+	}
+	
+	/** Returns the source text of token i
+	 * @param i
+	 * @return String
+	 */
+	private String valueOf(int i) {
+		int k = slot(i);
+		return src.substring(starts[k], ends[k]);
+	}
+	
+	/** Returns token i in xml format, e.g. <keyword> class </keyword>
+	 * @param i
+	 * @return String
+	 */
+	private String toXml(int i) {
+		String type = typeName(kinds[slot(i)]);
+		return "<" + type + "> " + escape(valueOf(i)) + " </" + type + ">";
+	}
+	
+	/** Returns the xml tag name of the given token type
+	 * @param kind
+	 * @return String
+	 */
+	private static String typeName(int kind) {
+		switch (kind) {
+		case KEYWORD :
+			return "keyword";
+		case SYMBOL :
+			return "symbol";
+		case IDENTIFIER :
+			return "identifier";
+		case INT_CONST :
+			return "integerConstant";
+		case STRING_CONST :
+			return "stringConstant";
+		default :
+			return "";
+		}
 	}
 	
 	/** Outputs syntax highlight for debugging
@@ -464,10 +886,10 @@ public class JackTokenizer {
 		}
 		
 		if (s.matches("class|constructor|method|function"))
-			System.out.println();
-		System.out.format("%s%s%s ", c, s, ANSI_RESET);
+			out.println();
+		out.format("%s%s%s ", c, s, ANSI_RESET);
 		if (s.matches("\\{|\\}|\\;"))
-			System.out.println();
+			out.println();
 	}
 	
 	private String escape(String s) {
@@ -503,71 +925,78 @@ public class JackTokenizer {
 	    return builder.toString();
 	}
 	
-	/** Parses XML string to retrieve the data
-	 * @param xmlStr
-	 * @return String
+	/** Lexes the rest of the file, so that filenameT.xml is complete, and closes it.
+	 *  Needed in streaming mode, where tokens are lexed only as they are asked for.
 	 */
-	public String xmlToString(String xmlStr) {
-		DocumentBuilder db = null;
-		try {
-			db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		InputSource is = new InputSource();
-		is.setCharacterStream(new StringReader(xmlStr));
-		
-		Document doc = null;
-		try {
-			doc = db.parse(is);
-		} catch (SAXException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		NodeList node = doc.getChildNodes();
-		Element line = (Element) node.item(0);
-		return getCharacterDataFromElement(line);
+	public void close() {
+		while (lexNext())
+			;
 	}
 	
-	/** Returns data from xml element
-	 * 
-	 * @param e
-	 * @return String
+	/** Opens filenameT.xml. Tokens are written to it as they are lexed,
+	 *  through a buffer so that the file gets a few large writes.
+	 * @param fileName
 	 */
-	private static String getCharacterDataFromElement(Element e) {
-		Node child = e.getFirstChild();
-
-		if (child instanceof CharacterData) {
-			CharacterData cd = (CharacterData) child;
-			return cd.getData();
-		}
-    	return "";
-	}
-	
 	private void writeFile(String fileName) {
 		try
 		{
 			File fl = new File(fileName.substring(0, fileName.lastIndexOf(".")) + "T.xml");
-			fw = new FileWriter(fl);
-			Iterator<String> it = tokens.iterator();
+			fw = new BufferedWriter(new FileWriter(fl), 1 << 16);
+			xml = new StringBuilder(64);
 			
 			fw.write("<tokens>\n");
-			
-			while (it.hasNext()) {
-				fw.write( it.next() );
-				if (it.hasNext())
-					fw.write('\n');		// do not add a blank line unless there is a token
-			}
-			
+		}
+		catch (IOException  e) { 
+			e.printStackTrace(out);
+		}
+    }
+	
+	/** Writes token i to filenameT.xml. Keywords, identifiers and integer
+	 *  constants need no escaping, so they are copied from the source as is.
+	 * @param i
+	 */
+	private void writeToken(int i) {
+		if (fw == null)
+			return;
+		
+		int k = slot(i);
+		String type = typeName(kinds[k]);
+		
+		xml.setLength(0);
+		if (i > 0)
+			xml.append('\n');		// do not add a blank line unless there is a token
+		xml.append('<').append(type).append("> ");
+		
+		if (kinds[k] == SYMBOL || kinds[k] == STRING_CONST)
+			xml.append(escape(valueOf(i)));
+		else
+			xml.append(src, starts[k], ends[k]);
+		
+		xml.append(" </").append(type).append('>');
+		
+		try
+		{
+			fw.append(xml);
+		}
+		catch (IOException  e) { 
+			e.printStackTrace(out);
+		}
+	}
+	
+	/** Ends and closes filenameT.xml
+	 */
+	private void closeFile() {
+		if (fw == null)
+			return;
+		
+		try
+		{
 			fw.write("</tokens>");
 			fw.close();
 		}
 		catch (IOException  e) { 
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
-    }
+		fw = null;
+	}
 }
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/** Interning pool for the names used by the compiler.
+ *  Each distinct identifier or keyword text gets a small int id when it is
+ *  first met by the tokenizer. The symbol table, the compilation engine and
+ *  the VM writer work on ids and only turn them back into text on output.
+ *  One table can be shared by all classes compiled in a build.
+ *  Keywords are interned first, so a keyword's id is its code - CLASS.
+ */
+public class NameTable {
+	private volatile String[] names;	// id -> name text
+	private int[] hashes;				// id -> hash of name
+	private int[] slots;				// open addressed hash table of id + 1, 0 = empty
+	private int size;					// no. of names interned
+	
+	/** Creates a name table holding the Jack keywords
+	 */
+	public NameTable() {
+		
+		names  = new String[256];
+		hashes = new int[256];
+		slots  = new int[512];
+		size   = 0;
+		
+		for (int c = JackTokenizer.CLASS; c <= JackTokenizer.THIS; c++)
+			intern(JackTokenizer.keywordName(c));
+	}
+	
+	/** Returns the id of the given name, adding it to the table if it is new.
+	 * @param s
+	 * @return int
+	 */
+	public int intern(String s) {
+		return intern(s, 0, s.length());
+	}
+	
+	/** Returns the id of the characters s[start..end), adding them to the
+	 *  table if they are new. No String is created for names already in the table.
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @return int
+	 */
+	public synchronized int intern(CharSequence s, int start, int end) {
+		int h = hash(s, start, end);
+		int mask = slots.length - 1;
+		int i = h & mask;
+		int id;
+		
+		while ((id = slots[i] - 1) != -1) {
+			if (hashes[id] == h && equals(names[id], s, start, end))
+				return id;
+			i = (i + 1) & mask;
+		}
+		
+		id = size;
+		if (id == hashes.length) {
+			hashes = Arrays.copyOf(hashes, id * 2);
+			names  = Arrays.copyOf(names, id * 2);
+		}
+		names[id]  = s.subSequence(start, end).toString();
+		hashes[id] = h;
+		slots[i]   = id + 1;
+		size++;
+		
+		if (size * 2 > slots.length)
+			rehash();
+		return id;
+	}
+	
+	/** Returns the text of the given name id
+	 * @param id
+	 * @return String, null if id is -1
+	 */
+	public String nameOf(int id) {
+		if (id < 0)
+			return null;
+		return names[id];
+	}
+	
+	/** Returns the no. of names in the table
+	 * @return int
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/** Doubles the hash table and re-inserts all ids
+	 */
+	private void rehash() {
+		int[] s = new int[slots.length * 2];
+		int mask = s.length - 1;
+		
+		for (int id = 0; id < size; id++) {
+			int i = hashes[id] & mask;
+			while (s[i] != 0)
+				i = (i + 1) & mask;
+			s[i] = id + 1;
+		}
+		slots = s;
+	}
+	
+	private static int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		
+		for (int i = start; i < end; i++)
+			h = 31 * h + s.charAt(i);
+		return h ^ (h >>> 16);
+	}
+	
+	private static boolean equals(String name, CharSequence s, int start, int end) {
+		if (name.length() != end - start)
+			return false;
+		
+		for (int i = start; i < end; i++)
+			if (name.charAt(i - start) != s.charAt(i))
+				return false;
+		return true;
+	}
+}
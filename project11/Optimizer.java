@@ -0,0 +1,350 @@
+/** Optimizes the IR of a class before it is lowered to VM code.
+ *  Expressions are folded bottom up, in place, with the 16 bit two's
+ *  complement arithmetic of the Hack platform:
+ *  operators on constants are evaluated, and x+0, x-0, x*1, x/1, x|0,
+ *  x*0, x&0 and x-x are simplified. Rules that drop an operand are applied
+ *  only when the operand has no side effects.
+ *  Once folded, statements that can never run are removed: those after a
+ *  return, after a while (true) or after an if whose branches both return,
+ *  and the branches and loops that a constant condition rules out.
+ */
+public class Optimizer {
+	private IRTree ir	= null;
+	
+	/** Creates an optimizer for the given tree
+	 */
+	public Optimizer(IRTree ir) {
+		this.ir = ir;
+	}
+	
+	/** Optimizes a complete class
+	 * @param node CLASS
+	 */
+	public void optimizeClass(int node) {
+		for (int n = ir.c(node); n >= 0; n = ir.next(n))
+			if (ir.kind(n) == IRTree.SUBROUTINE)
+				foldStatements(ir.d(n));
+	}
+	
+	/** Removes the unreachable statements of a folded class
+	 * @param node CLASS
+	 */
+	public void removeDeadCode(int node) {
+		for (int n = ir.c(node); n >= 0; n = ir.next(n))
+			if (ir.kind(n) == IRTree.SUBROUTINE)
+				ir.setD(n, prune(ir.d(n)));
+	}
+	
+	/** Removes the unreachable statements of a list.
+	 *  An if on a constant is replaced by the branch it takes, and a while
+	 *  on a constant that is not true is dropped. Like the VM code, which
+	 *  branches on not cond, only -1 counts as true: if (1) takes the else.
+	 * @param node first statement, -1 if none
+	 * @return first statement left, -1 if none
+	 */
+	private int prune(int node) {
+		int first = -1, last = -1;
+		int n = node;
+		
+		while (n >= 0) {
+			int next = ir.next(n);
+			int kept = -1;
+			
+			ir.setNext(n, -1);		// relinked below if kept
+			
+			switch (ir.kind(n)) {
+			case IRTree.WHILE :
+				if (ir.isConst(ir.a(n)) && ir.valueOf(ir.a(n)) != -1)
+					break;
+				ir.setB(n, prune(ir.b(n)));
+				kept = n;
+				break;
+			
+			case IRTree.IF :
+				if (ir.isConst(ir.a(n))) {
+					kept = prune((ir.valueOf(ir.a(n)) == -1) ? ir.b(n) : ir.c(n));
+					break;
+				}
+				ir.setB(n, prune(ir.b(n)));
+				ir.setC(n, prune(ir.c(n)));
+				kept = n;
+				break;
+			
+			default :
+				kept = n;
+				break;
+			}
+			
+			if (kept >= 0) {
+				if (first < 0)
+					first = kept;
+				ir.link(last, kept);
+				last = tail(kept);
+				
+				if (terminates(last))
+					break;
+			}
+			n = next;
+		}
+		
+		if (last >= 0)
+			ir.setNext(last, -1);
+		return first;
+	}
+	
+	/** Returns the last statement of a list
+	 * @param node first statement
+	 * @return node
+	 */
+	private int tail(int node) {
+		while (ir.next(node) >= 0)
+			node = ir.next(node);
+		return node;
+	}
+	
+	/** Does the statement never complete, so that the statements after it
+	 *  cannot run? Jack has no break, so only a return leaves a while (true).
+	 * @param node statement
+	 * @return boolean
+	 */
+	private boolean terminates(int node) {
+		switch (ir.kind(node)) {
+		case IRTree.RETURN :
+			return true;
+		case IRTree.WHILE :
+			return ir.isConst(ir.a(node));		// pruned, so the constant is true
+		case IRTree.IF :
+			return ir.b(node) >= 0 && ir.c(node) >= 0
+				&& terminates(tail(ir.b(node))) && terminates(tail(ir.c(node)));
+		default :
+			return false;
+		}
+	}
+	
+	/** Folds the expressions of a list of statements
+	 * @param node first statement, -1 if none
+	 */
+	private void foldStatements(int node) {
+		for (int n = node; n >= 0; n = ir.next(n)) {
+			switch (ir.kind(n)) {
+			case IRTree.LET :
+				fold(ir.c(n));
+				fold(ir.d(n));
+				break;
+			
+			case IRTree.DO : case IRTree.RETURN :
+				fold(ir.a(n));
+				break;
+			
+			case IRTree.WHILE :
+				fold(ir.a(n));
+				foldStatements(ir.b(n));
+				break;
+			
+			case IRTree.IF :
+				fold(ir.a(n));
+				foldStatements(ir.b(n));
+				foldStatements(ir.c(n));
+				break;
+			}
+		}
+	}
+	
+	/** Folds an expression in place
+	 * @param node expression, -1 does nothing
+	 */
+	private void fold(int node) {
+		if (node < 0)
+			return;
+		
+		switch (ir.kind(node)) {
+		case IRTree.INDEX :
+			fold(ir.c(node));
+			break;
+		
+		case IRTree.CALL :
+			for (int n = ir.c(node); n >= 0; n = ir.next(n))
+				fold(n);
+			break;
+		
+		case IRTree.UNARY :
+			fold(ir.b(node));
+			foldUnary(node);
+			break;
+		
+		case IRTree.BINARY :
+			fold(ir.b(node));
+			fold(ir.c(node));
+			foldBinary(node);
+			break;
+		}
+	}
+	
+	/** Folds - or ~ of a constant
+	 * @param node UNARY
+	 */
+	private void foldUnary(int node) {
+		int x = ir.b(node);
+		
+		if (!ir.isConst(x))
+			return;
+		
+		if (ir.a(node) == '-')
+			setConst(node, -ir.valueOf(x));
+		else
+			setConst(node, ~ir.valueOf(x));
+	}
+	
+	/** Folds an operator on two constants, or on a constant that leaves
+	 *  the other operand unchanged or makes it irrelevant
+	 * @param node BINARY
+	 */
+	private void foldBinary(int node) {
+		int op = ir.a(node);
+		int x  = ir.b(node);
+		int y  = ir.c(node);
+		
+		if (x < 0 || y < 0)
+			return;
+		
+		if (ir.isConst(x) && ir.isConst(y)) {
+			foldConst(node, op, ir.valueOf(x), ir.valueOf(y));
+			return;
+		}
+		
+		switch (op) {
+		case '+' :
+			if (isConst(y, 0))
+				ir.replace(node, x);			// x+0
+			else if (isConst(x, 0))
+				ir.replace(node, y);			// 0+y
+			break;
+		
+		case '-' :
+			if (isConst(y, 0))
+				ir.replace(node, x);			// x-0
+			else if (ir.isPure(x) && same(x, y))
+				setConst(node, 0);				// x-x
+			break;
+		
+		case '*' :
+			if (isConst(y, 1))
+				ir.replace(node, x);			// x*1
+			else if (isConst(x, 1))
+				ir.replace(node, y);			// 1*y
+			else if ((isConst(y, 0) && ir.isPure(x)) || (isConst(x, 0) && ir.isPure(y)))
+				setConst(node, 0);				// x*0, 0*y
+			break;
+		
+		case '/' :
+			if (isConst(y, 1))
+				ir.replace(node, x);			// x/1
+			break;
+		
+		case '|' :
+			if (isConst(y, 0))
+				ir.replace(node, x);			// x|0
+			else if (isConst(x, 0))
+				ir.replace(node, y);			// 0|y
+			break;
+		
+		case '&' :
+			if ((isConst(y, 0) && ir.isPure(x)) || (isConst(x, 0) && ir.isPure(y)))
+				setConst(node, 0);				// x&0, 0&y
+			break;
+		}
+	}
+	
+	/** Folds an operator on two constants. Division by 0 is left to run time,
+	 *  and so are the divisions and comparisons that overflow 16 bits,
+	 *  where Math.divide and the VM's subtract-and-test differ from Java.
+	 * @param node BINARY
+	 * @param op
+	 * @param x
+	 * @param y
+	 */
+	private void foldConst(int node, int op, int x, int y) {
+		switch (op) {
+		case '+' :
+			setConst(node, x + y);
+			break;
+		
+		case '-' :
+			setConst(node, x - y);
+			break;
+		
+		case '*' :
+			setConst(node, x * y);
+			break;
+		
+		case '/' :
+			if (y != 0 && x != Short.MIN_VALUE && y != Short.MIN_VALUE)
+				setConst(node, x / y);		// truncates toward 0, as Math.divide
+			break;
+		
+		case '&' :
+			setConst(node, x & y);
+			break;
+		
+		case '|' :
+			setConst(node, x | y);
+			break;
+		
+		case '<' : case '>' : case '=' :
+			if (op != '=' && (short) (x - y) != x - y)
+				break;
+			if (op == '<')
+				setConst(node, (x < y) ? -1 : 0);
+			else if (op == '>')
+				setConst(node, (x > y) ? -1 : 0);
+			else
+				setConst(node, (x == y) ? -1 : 0);
+			break;
+		}
+	}
+	
+	/** Is the node the given constant?
+	 * @param node
+	 * @param value
+	 * @return boolean
+	 */
+	private boolean isConst(int node, int value) {
+		return ir.isConst(node) && ir.valueOf(node) == value;
+	}
+	
+	/** Replaces a node by an integer constant, truncated to 16 bits
+	 * @param node
+	 * @param value
+	 */
+	private void setConst(int node, int value) {
+		ir.set(node, IRTree.INT, (short) value, -1, -1, -1);
+	}
+	
+	/** Are two expressions the same?
+	 * @param x
+	 * @param y
+	 * @return boolean
+	 */
+	private boolean same(int x, int y) {
+		if (x < 0 || y < 0)
+			return x == y;
+		
+		if (ir.kind(x) != ir.kind(y) || ir.a(x) != ir.a(y))
+			return false;
+		
+		switch (ir.kind(x)) {
+		case IRTree.INT : case IRTree.KEYWORD :
+			return true;
+		case IRTree.VAR :
+			return ir.b(x) == ir.b(y);
+		case IRTree.INDEX :
+			return ir.b(x) == ir.b(y) && same(ir.c(x), ir.c(y));
+		case IRTree.UNARY :
+			return same(ir.b(x), ir.b(y));
+		case IRTree.BINARY :
+			return same(ir.b(x), ir.b(y)) && same(ir.c(x), ir.c(y));
+		default :
+			return false;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/** Signatures of the subroutines of every class of a program, for whole
+ *  program compilation (-whole). Built before any class is compiled, by a
+ *  quick scan of the declarations of each .jack file, so the compilation
+ *  engine knows at each call whether the callee exists, is a function,
+ *  method or constructor, and how many arguments it takes.
+ *
+ *  The OS classes are built in, with the API of the book. A class of the
+ *  program replaces the built-in class of the same name, as in project12.
+ *  Classes that are neither are external and calls to them are not checked.
+ *
+ *  The signatures of a file are kept as text, one per line:
+ *  class className
+ *  keyword className.subroutineName nParams returnType
+ *  which is also the form cached in the build cache. The class line
+ *  registers the class even when it has no subroutines, so a call to it
+ *  is reported as undefined rather than passed as external.
+ */
+public class SubroutineIndex {
+
+	/** Signature of one subroutine
+	 */
+	public final static class Signature {
+		public final int kind;		// CONSTRUCTOR, FUNCTION or METHOD
+		public final int nParams;	// no. of parameters, without this
+		public final int type;		// return type id
+
+		Signature(int kind, int nParams, int type) {
+			this.kind    = kind;
+			this.nParams = nParams;
+			this.type    = type;
+		}
+	}
+
+	// the OS API
+	private final static String OS =
+		  "function Math.init 0 void\nfunction Math.abs 1 int\nfunction Math.multiply 2 int\n"
+		+ "function Math.divide 2 int\nfunction Math.min 2 int\nfunction Math.max 2 int\n"
+		+ "function Math.sqrt 1 int\n"
+		+ "constructor String.new 1 String\nmethod String.dispose 0 void\nmethod String.length 0 int\n"
+		+ "method String.charAt 1 char\nmethod String.setCharAt 2 void\nmethod String.appendChar 1 String\n"
+		+ "method String.eraseLastChar 0 void\nmethod String.intValue 0 int\nmethod String.setInt 1 void\n"
+		+ "function String.backSpace 0 char\nfunction String.doubleQuote 0 char\nfunction String.newLine 0 char\n"
+		+ "function Array.new 1 Array\nmethod Array.dispose 0 void\n"
+		+ "function Output.init 0 void\nfunction Output.moveCursor 2 void\nfunction Output.printChar 1 void\n"
+		+ "function Output.printString 1 void\nfunction Output.printInt 1 void\nfunction Output.println 0 void\n"
+		+ "function Output.backSpace 0 void\n"
+		+ "function Screen.init 0 void\nfunction Screen.clearScreen 0 void\nfunction Screen.setColor 1 void\n"
+		+ "function Screen.drawPixel 2 void\nfunction Screen.drawLine 4 void\nfunction Screen.drawRectangle 4 void\n"
+		+ "function Screen.drawCircle 3 void\n"
+		+ "function Keyboard.init 0 void\nfunction Keyboard.keyPressed 0 char\nfunction Keyboard.readChar 0 char\n"
+		+ "function Keyboard.readLine 1 String\nfunction Keyboard.readInt 1 int\n"
+		+ "function Memory.init 0 void\nfunction Memory.peek 1 int\nfunction Memory.poke 2 void\n"
+		+ "function Memory.alloc 1 int\nfunction Memory.deAlloc 1 void\n"
+		+ "function Sys.init 0 void\nfunction Sys.halt 0 void\nfunction Sys.error 1 void\n"
+		+ "function Sys.wait 1 void\n";
+
+	// version of the signature text, part of its build cache key
+	public final static int INDEX_VERSION = 2;
+	
+	private NameTable names;
+	private Map<Long, Signature> subs	= new HashMap<Long, Signature>();	// (class id, sub id) -> signature
+	private Set<Integer> classes		= new HashSet<Integer>();			// classes of the program
+	private Map<Long, Signature> os		= new HashMap<Long, Signature>();
+	private Set<Integer> osClasses		= new HashSet<Integer>();
+	private String digest = "";			// hash of all the signatures of the program
+
+	/** Creates an index holding only the OS classes
+	 * @param names name table of the build
+	 */
+	public SubroutineIndex(NameTable names) {
+		this.names = names;
+		add(OS, os, osClasses);
+	}
+
+	/** Indexes the .jack files on a pool of jobs threads. The signatures of
+	 *  each file are taken from the build cache when its text is unchanged.
+	 * @param files
+	 * @param jobs
+	 * @param cache null if none
+	 * @param out console output
+	 */
+	public void index(File[] files, int jobs, BuildCache cache, PrintStream out) {
+		ForkJoinPool pool = new ForkJoinPool(jobs);
+		List<ForkJoinTask<String>> results = new ArrayList<ForkJoinTask<String>>();
+		StringBuilder all = new StringBuilder();
+
+		try {
+			for (File file : files)
+				if (file.getName().toLowerCase().endsWith(".jack"))
+					results.add(pool.submit(() -> signatures(file, cache, out)));
+
+			for (ForkJoinTask<String> result : results) {
+				String sigs = result.join();
+
+				add(sigs, subs, classes);
+				all.append(sigs);
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		digest = BuildCache.key(all.toString().getBytes(StandardCharsets.UTF_8));
+		out.format("Indexed %d subroutines of %d classes\n", subs.size(), classes.size());
+	}
+
+	/** Returns the signatures of one file, from the cache or by scanning it
+	 * @param file
+	 * @param cache null if none
+	 * @param out console output
+	 * @return String one signature per line
+	 */
+	private String signatures(File file, BuildCache cache, PrintStream out) {
+		String key, sigs;
+		String[] entry;
+
+		if (cache == null)
+			return scan(file.getPath(), out);
+
+		try {
+			key = BuildCache.key(Files.readAllBytes(file.toPath()), file.getName(), "SubroutineIndex " + INDEX_VERSION);
+		} catch (IOException e) {
+			e.printStackTrace(out);
+			return "";
+		}
+
+		entry = cache.get(key);
+		if (entry != null)
+			return entry[0];
+
+		sigs = scan(file.getPath(), out);
+		cache.put(key, sigs);
+		return sigs;
+	}
+
+	/** Scans the declarations of a class: its name, then the keyword, return
+	 *  type, name and parameters of each subroutine. Subroutine bodies are
+	 *  skipped by counting braces, without parsing them.
+	 * @param path
+	 * @param out console output
+	 * @return String one signature per line
+	 */
+	private String scan(String path, PrintStream out) {
+		JackTokenizer jt = new JackTokenizer(path, names, JackTokenizer.WINDOW, false, out);
+		StringBuilder sigs = new StringBuilder();
+		String className = null;
+		int depth = 0;
+
+		while (jt.hasMoreTokens()) {
+			jt.advance();
+
+			if (jt.tokenType() == JackTokenizer.SYMBOL) {
+				if (jt.symbol() == '{')
+					depth++;
+				else if (jt.symbol() == '}')
+					depth--;
+			}
+			else if (depth == 0 && jt.keyWord() == JackTokenizer.CLASS) {
+				jt.advance();
+				className = jt.tokenVal();
+				sigs.append("class ").append(className).append('\n');
+			}
+			else if (depth == 1 && isSubroutine(jt.keyWord())) {
+				String kind, type, name;
+				int nParams = 0;
+
+				kind = jt.tokenVal();
+				jt.advance();
+				type = jt.tokenVal();
+				jt.advance();
+				name = jt.tokenVal();
+				jt.advance();					// (
+
+				for (jt.advance(); jt.hasMoreTokens() && jt.symbol() != ')'; jt.advance()) {
+					if (nParams == 0)
+						nParams = 1;
+					if (jt.symbol() == ',')
+						nParams++;
+				}
+
+				sigs.append(kind).append(' ').append(className).append('.').append(name)
+					.append(' ').append(nParams).append(' ').append(type).append('\n');
+			}
+		}
+		jt.close();
+
+		return sigs.toString();
+	}
+
+	private static boolean isSubroutine(int keyword) {
+		return keyword == JackTokenizer.CONSTRUCTOR || keyword == JackTokenizer.FUNCTION
+			|| keyword == JackTokenizer.METHOD;
+	}
+
+	/** Adds signatures in the text form
+	 * @param sigs
+	 * @param map
+	 * @param set
+	 */
+	private void add(String sigs, Map<Long, Signature> map, Set<Integer> set) {
+		for (String line : sigs.split("\n")) {
+			String[] f = line.split(" ");
+			int dot;
+
+			if (f.length == 2 && f[0].equals("class")) {
+				set.add(names.intern(f[1]));
+				continue;
+			}
+			if (f.length != 4)
+				continue;
+
+			dot = f[1].indexOf('.');
+			int cls = names.intern(f[1].substring(0, dot));
+			int sub = names.intern(f[1].substring(dot + 1));
+
+			set.add(cls);
+			map.put(key(cls, sub), new Signature(JackTokenizer.CLASS + names.intern(f[0]),
+					Integer.parseInt(f[2]), names.intern(f[3])));
+		}
+	}
+
+	private static long key(int cls, int sub) {
+		return ((long) cls << 32) | (sub & 0xFFFFFFFFL);
+	}
+
+	/** Is the class part of the program or of the OS?
+	 * @param cls class id
+	 * @return false for external classes, whose calls are not checked
+	 */
+	public boolean isKnown(int cls) {
+		return classes.contains(cls) || osClasses.contains(cls);
+	}
+
+	/** Returns the signature of a subroutine
+	 * @param cls class id
+	 * @param sub subroutine id
+	 * @return Signature, null if the class is external or has no such subroutine
+	 */
+	public Signature lookup(int cls, int sub) {
+		if (classes.contains(cls))
+			return subs.get(key(cls, sub));
+		return os.get(key(cls, sub));
+	}
+
+	/** Returns a hash of the signatures of the program. The code of a class
+	 *  depends on them, so it is part of the build cache key.
+	 * @return String
+	 */
+	public String digest() {
+		return digest;
+	}
+}
@@ -1,65 +1,181 @@
-import java.util.ArrayList;
+import java.io.PrintStream;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 
 public class SymbolTable {
-	private Map<String, ArrayList<String>> classScope, subScope;
+	private Scope classScope, subScope;
 	private int staticCnt, fieldCnt, argCnt, localCnt;
+	private NameTable names;
+	private PrintStream out;				// where Show() prints
 	
-	/** Creates a new symbol table
+	/** Kind of a symbol, with its name in the symbol table output
+	 *  and its segment in the IR
 	 */
-	public SymbolTable() {
+	public enum Kind {
+		STATIC	("static",   IRTree.STATIC),
+		FIELD	("field",    IRTree.FIELD),
+		ARG		("argument", IRTree.ARG),
+		LOCAL	("local",    IRTree.LOCAL);
 		
+		public final String text;
+		public final int segment;
+		
+		Kind(String text, int segment) {
+			this.text    = text;
+			this.segment = segment;
+		}
+	}
+	
+	/** One table entry. Entries are immutable, a lookup returns the entry itself.
+	 */
+	public final static class Symbol {
+		public final int name;		// name id
+		public final int type;		// type id
+		public final Kind kind;
+		public final int index;
+		
+		Symbol(int name, int type, Kind kind, int index) {
+			this.name  = name;
+			this.type  = type;
+			this.kind  = kind;
+			this.index = index;
+		}
+	}
+	
+	/** The symbols of one scope in an open addressed hash table keyed by
+	 *  name id, with linear probing. The symbols are also kept in the order
+	 *  they were defined, for Show(). Clearing keeps the arrays.
+	 */
+	private final static class Scope {
+		private int[] keys		= new int[32];		// name id, -1 if the slot is free
+		private Symbol[] slots	= new Symbol[32];
+		private Symbol[] order	= new Symbol[16];	// in the order defined
+		private int size		= 0;
+		
+		Scope() {
+			Arrays.fill(keys, -1);
+		}
+		
+		/** Returns the slot of a name id, or the free slot where it goes
+		 */
+		private int slot(int name) {
+			int mask = keys.length - 1;
+			int i = ((name * 0x9E3779B9) >>> 16) & mask;	// Fibonacci hash of the id
+			
+			while (keys[i] != -1 && keys[i] != name)
+				i = (i + 1) & mask;
+			return i;
+		}
+		
+		Symbol get(int name) {
+			return slots[slot(name)];
+		}
+		
+		/** Adds a symbol, or replaces the symbol of the same name in place
+		 */
+		void put(Symbol s) {
+			int i = slot(s.name);
+			
+			if (keys[i] == s.name) {
+				for (int k = 0; k < size; k++)
+					if (order[k].name == s.name)
+						order[k] = s;
+				slots[i] = s;
+				return;
+			}
+			
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+				i = slot(s.name);
+			}
+			if (size == order.length)
+				order = Arrays.copyOf(order, size * 2);
+			
+			keys[i]  = s.name;
+			slots[i] = s;
+			order[size++] = s;
+		}
+		
+		/** Doubles the table, keeping it at most half full
+		 */
+		private void grow() {
+			int[] oldKeys = keys;
+			Symbol[] oldSlots = slots;
+			
+			keys  = new int[oldKeys.length * 2];
+			slots = new Symbol[oldKeys.length * 2];
+			Arrays.fill(keys, -1);
+			
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != -1) {
+					int k = slot(oldKeys[i]);
+					keys[k]  = oldKeys[i];
+					slots[k] = oldSlots[i];
+				}
+			}
+		}
+		
+		/** Removes all symbols, without allocating
+		 */
+		void clear() {
+			Arrays.fill(keys, -1);
+			Arrays.fill(slots, null);
+			Arrays.fill(order, 0, size, null);
+			size = 0;
+		}
+	}
+	
+	/** Creates a new symbol table. Names and types are ids in the given name table.
+	 */
+	public SymbolTable(NameTable names) {
+		this(names, System.out);
+	}
+	
+	/** Creates a new symbol table that prints to the given stream
+	 */
+	public SymbolTable(NameTable names, PrintStream out) {
+		
+		this.names = names;
+		this.out   = out;
 		staticCnt = 0;
 		fieldCnt  = 0;
-		classScope 	  = new LinkedHashMap<String, ArrayList<String>>();
-		subScope      = null;
+		classScope 	  = new Scope();
+		subScope      = new Scope();
 	}
 	
 	/** Starts a new subroutine scope (i.e., resets the subroutine's
-	 *  symbol table).
+	 *  symbol table). The scope's table is cleared and reused.
 	 */
 	public void startSubroutine() {
 		
 		argCnt 	 = 0;
 		localCnt = 0;
-		subScope   = new LinkedHashMap<String, ArrayList<String>>();
+		subScope.clear();
 	}
 	
 	/** Defines a new identifier of the given name, type, and kind,
 	 *  and assigns it a running index. STATIC and FIELD identifiers
-	 *  have a class scope, while ARG and VAR identifiers have a subroutine scope.
-	 * @param name
-	 * @param type
-	 * @param kind (STATIC, FIELD, ARG or VAR)
+	 *  have a class scope, while ARG and LOCAL identifiers have a subroutine scope.
+	 * @param name id
+	 * @param type id
+	 * @param kind
 	 */
-	public void define(String name, String type, String kind) {
+	public void define(int name, int type, Kind kind) {
 		
-		switch (kind.toLowerCase()) {
-		case "static" :
-			classScope.put(name, new ArrayList<String>(
-					Arrays.asList(name, type, kind, String.valueOf(staticCnt++))));
+		switch (kind) {
+		case STATIC :
+			classScope.put(new Symbol(name, type, kind, staticCnt++));
 			break;
 		
-		case "field" :
-			classScope.put(name, new ArrayList<String>(
-					Arrays.asList(name, type, kind, String.valueOf(fieldCnt++))));
+		case FIELD :
+			classScope.put(new Symbol(name, type, kind, fieldCnt++));
 			break;
-			
-		case "argument" :
-			subScope.put(name, new ArrayList<String>(
-					Arrays.asList(name, type, kind, String.valueOf(argCnt++))));
-			break;
-			
-		case "var" : case "local" :
-			subScope.put(name, new ArrayList<String>(
-					Arrays.asList(name, type, "local", String.valueOf(localCnt++))));
+		
+		case ARG :
+			subScope.put(new Symbol(name, type, kind, argCnt++));
 			break;
-			
-		default:
+		
+		case LOCAL :
+			subScope.put(new Symbol(name, type, kind, localCnt++));
 			break;
 		}
 	}
@@ -69,107 +185,98 @@ public class SymbolTable {
 	 *  @param kind
 	 *  @return int
 	 */
-	public int VarCount(String kind) {
+	public int VarCount(Kind kind) {
 		int count = 0;
-		switch (kind.toLowerCase()) {
-		case "static" :
+		switch (kind) {
+		case STATIC :
 			count = staticCnt;
 			break;
 		
-		case "field" :
+		case FIELD :
 			count = fieldCnt;
 			break;
-			
-		case "argument" :
+		
+		case ARG :
 			count = argCnt;
 			break;
-			
-		case "local" :
+		
+		case LOCAL :
 			count = localCnt;
 			break;
-			
-		default:
-			break;
 		}
 		return count;
 	}
 	
+	/** Returns the entry of the named identifier in the current scope,
+	 *  the subroutine scope first.
+	 * @param name id
+	 * @return Symbol, null if not found
+	 */
+	public Symbol lookup(int name) {
+		Symbol s = subScope.get(name);
+		
+		if (s == null)
+			s = classScope.get(name);
+		
+		return s;
+	}
+	
 	/** Returns the kind of the named identifier in the current scope.
 	 *  If the identifier is unknown in the current scope, returns NONE.
-	 *  @return String (STATIC, FIELD, ARG, VAR, NONE)
+	 *  @param name id
+	 *  @return String (static, field, argument, local, NONE)
 	 */
-	public String KindOf(String name) {
-		ArrayList<String> s = getEntry(name);
+	public String KindOf(int name) {
+		Symbol s = lookup(name);
 		
 		if (s == null)
 			return "NONE";
-		return s.get(2);
+		return s.kind.text;
 	}
 	
 	/** Returns the type of the named identifier in the current scope.
-	 * @param name
-	 * @return String
+	 * @param name id
+	 * @return type id, -1 if not found
 	 */
-	public String TypeOf(String name) {
-		ArrayList<String> s = getEntry(name);
+	public int TypeOf(int name) {
+		Symbol s = lookup(name);
 		
 		if (s == null)
-			return "NONE";
-		return s.get(1);
+			return -1;
+		return s.type;
 	}
 	
 	/** Returns the index assigned to the named identifier.
+	 * @param name id
 	 * @return -1 if not found. Otherwise a zero-based index.
 	*/
-	public int IndexOf(String name) {
-		ArrayList<String> s = getEntry(name);
+	public int IndexOf(int name) {
+		Symbol s = lookup(name);
 		
 		if (s == null)
 			return -1;
-		return Integer.parseInt(s.get(3));
+		return s.index;
 	}
-	
-	/** Gets the table entry using the key
-	 * @param name
-	 * @return ArrayList<String>
-	 */
-	private ArrayList<String> getEntry(String name) {
-		ArrayList<String> s = null;
-		
-		if (subScope != null)
-			s = subScope.get(name);
-		
-		if (s == null)
-			s = classScope.get(name);
 
-		return s;
-	}
-	
 	/** Prints table entry
 	 */
 	public void Show() {
-		Iterator<Entry<String, ArrayList<String>>> entries = classScope.entrySet().iterator();
-		
-		System.out.println("class symbol table:");
-		while (entries.hasNext()) {
-			Entry<String, ArrayList<String>> thisEntry = (Entry<String, ArrayList<String>>) entries.next();
-			Object key = thisEntry.getKey();
-			ArrayList<String> value = (ArrayList<String>) thisEntry.getValue();
-			
-			System.out.format("%15s %15s %15s %15s\n", key, value.get(1), value.get(2), value.get(3));
-		}
+		out.println("class symbol table:");
+		show(classScope);
 		
-		System.out.println("\nsubroutine symbol table:");
-		if (subScope != null) {
-			entries = subScope.entrySet().iterator();
+		out.println("\nsubroutine symbol table:");
+		show(subScope);
+	}
+	
+	/** Prints the entries of one scope
+	 * @param scope
+	 */
+	private void show(Scope scope) {
+		for (int k = 0; k < scope.size; k++) {
+			Symbol s = scope.order[k];
 			
-			while (entries.hasNext()) {
-				Entry<String, ArrayList<String>> thisEntry = (Entry<String, ArrayList<String>>) entries.next();
-				Object key = thisEntry.getKey();
-				ArrayList<String> value = (ArrayList<String>) thisEntry.getValue();
-				
-				System.out.format("%15s %15s %15s %15s\n", key, value.get(1), value.get(2), value.get(3));
-			}
+			out.format("%15s %15s %15s %15s\n", names.nameOf(s.name),
+					names.nameOf(s.type), s.kind.text, s.index);
 		}
 	}
 
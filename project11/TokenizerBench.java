@@ -0,0 +1,77 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Times JackTokenizer on a set of .jack files.
+ *  Each round tokenizes every file in full. The first rounds warm up the
+ *  JIT and are not counted; the best and median of the rest are reported.
+ *  Only the constructor, hasMoreTokens() and advance() are used, so the
+ *  same harness also runs against older versions of the tokenizer for a
+ *  before and after comparison.
+ *
+ *  java TokenizerBench [-rounds=n] <filename.jack or dirname>...
+ */
+public class TokenizerBench {
+	
+	private final static int WARMUP = 5;		// rounds not counted
+	
+	public static void main(String[] args) {
+		List<String> files = new ArrayList<String>();
+		int rounds = 20;
+		
+		for (String arg : args) {
+			if (arg.startsWith("-rounds="))
+				rounds = Integer.parseInt(arg.substring(8));
+			else
+				addFiles(new File(arg), files);
+		}
+		
+		if (files.isEmpty() || rounds < 1) {
+			System.err.println("Usage: java TokenizerBench [-rounds=n] <filename.jack or dirname>...");
+			System.exit(-1);
+		}
+		
+		long[] times = new long[rounds];
+		long tokens = 0;
+		
+		for (int r = -WARMUP; r < rounds; r++) {
+			long start = System.nanoTime();
+			
+			tokens = 0;
+			for (String path : files) {
+				JackTokenizer jt = new JackTokenizer(path);
+				
+				while (jt.hasMoreTokens()) {
+					jt.advance();
+					tokens++;
+				}
+			}
+			
+			if (r >= 0)
+				times[r] = System.nanoTime() - start;
+		}
+		
+		Arrays.sort(times);
+		System.out.format("%d files, %d tokens per round, %d rounds\n", files.size(), tokens, rounds);
+		System.out.format("best %.3f ms, median %.3f ms, %.0f tokens/ms\n",
+				times[0] / 1e6, times[rounds / 2] / 1e6, tokens / (times[rounds / 2] / 1e6));
+	}
+	
+	/** Adds a .jack file, or the .jack files of a directory
+	 * @param file
+	 * @param files
+	 */
+	private static void addFiles(File file, List<String> files) {
+		File[] children = file.listFiles();
+		
+		if (children != null) {
+			Arrays.sort(children);
+			for (File child : children)
+				if (child.getName().endsWith(".jack"))
+					files.add(child.getPath());
+		}
+		else if (file.getName().endsWith(".jack"))
+			files.add(file.getPath());
+	}
+}
@@ -0,0 +1,741 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Lowers the IR of a class to VM code.
+ *  Walks the tree in source order, so labels are numbered in the order
+ *  the statements appear, and writes the VM commands through a VMWriter.
+ */
+public class VMGenerator {
+	private IRTree    ir	= null;
+	private VMWriter  vw	= null;
+	private NameTable names	= null;		// resolves class names for the comments
+	private int className;					// name id
+	private int nFields;					// no. of fields of the class, allocated by constructors
+	private int nStatics;					// no. of statics of the class, the string pool goes after them
+	private Map<String, Integer> pool = new LinkedHashMap<String, Integer>();	// string constant -> index in the pool
+	private int lblNo			= 0;		// unique label no. Auto-increment. Per subroutine under -O
+	private boolean optimize	= false;	// -O
+	private int thatSeg			= IRTree.NONE;	// under -O, the array variable whose value is in pointer 1,
+	private int thatIdx			= 0;			// NONE when unknown
+	
+	private final static int MAX_CHAIN = 48;	// longest multiply by constant chain, in VM commands
+	
+	/** Creates a generator writing to the given VM writer
+	 */
+	public VMGenerator(IRTree ir, VMWriter vw, NameTable names, CompilerOptions options) {
+		this.ir    = ir;
+		this.vw    = vw;
+		this.names = names;
+		this.optimize = options.optimize;
+	}
+	
+	/** Writes a complete class
+	 * @param node CLASS
+	 */
+	public void writeClass(int node) {
+		className = ir.a(node);
+		nFields   = ir.b(node);
+		nStatics  = ir.d(node);
+		pool.clear();
+		
+		vw.writeVM("// class " + names.nameOf(className));
+		
+		for (int n = ir.c(node); n >= 0; n = ir.next(n)) {
+			if (ir.kind(n) == IRTree.VAR_DEC)
+				vw.writeVM("\n// " + ir.text(n));
+			else
+				writeSubroutine(n);
+		}
+		
+		writeStringPool();
+	}
+	
+	/** Returns the no. of VM commands of each subroutine of a class, in order.
+	 *  The generator should write to a counting VMWriter.
+	 * @param node CLASS
+	 * @return int[]
+	 */
+	public int[] sizes(int node) {
+		int[] sizes = new int[ir.length(ir.c(node))];
+		int i = 0;
+		
+		className = ir.a(node);
+		nFields   = ir.b(node);
+		nStatics  = ir.d(node);
+		pool.clear();
+		
+		for (int n = ir.c(node); n >= 0; n = ir.next(n)) {
+			if (ir.kind(n) == IRTree.SUBROUTINE) {
+				int start = vw.count();
+				writeSubroutine(n);
+				sizes[i++] = vw.count() - start;
+			}
+		}
+		return Arrays.copyOf(sizes, i);
+	}
+	
+	/** Writes a method, function, or constructor
+	 * @param node SUBROUTINE
+	 */
+	private void writeSubroutine(int node) {
+		int nLocals = 0;
+		
+		vw.writeVM("\n// " + ir.text(node));
+		
+		for (int n = ir.c(node); n >= 0; n = ir.next(n)) {
+			vw.writeVM("\n// " + ir.text(n));
+			nLocals += ir.b(n);
+		}
+		
+		vw.writeFunction(className, ir.b(node), nLocals);
+		
+		if (optimize)
+			lblNo = 0;		// VM labels are local to their function
+		
+		forgetThat();
+		
+		if (ir.a(node) == JackTokenizer.METHOD) {
+			vw.writePush("argument", 0);
+			
+			vw.writePop("pointer", 0);
+		}
+		else if (ir.a(node) == JackTokenizer.CONSTRUCTOR && nFields > 0) {
+			vw.writePush("constant", nFields);
+			
+			vw.writeCall("Memory.alloc", 1);
+			
+			vw.writePop("pointer", 0);
+		}
+		
+		writeStatements(ir.d(node));
+	}
+	
+	/** Writes a list of statements
+	 * @param node first statement, -1 if none
+	 */
+	private void writeStatements(int node) {
+		for (int n = node; n >= 0; n = ir.next(n)) {
+			switch (ir.kind(n)) {
+			case IRTree.LET :
+				writeLet(n);
+				break;
+				
+			case IRTree.DO :
+				vw.writeVM("\n// " + ir.text(n));
+				writeExpression(ir.a(n));
+				vw.writePop("temp", 0);		// drop the returned value for do statements
+				break;
+				
+			case IRTree.WHILE :
+				writeWhile(n);
+				break;
+				
+			case IRTree.IF :
+				writeIf(n);
+				break;
+				
+			case IRTree.RETURN :
+				writeExpression(ir.a(n));
+				if (ir.b(n) != 0)
+					vw.writePush("constant", 0);
+				vw.writeReturn();
+				break;
+			}
+		}
+	}
+	
+	/** Writes a let statement.
+	 *  Under -O, let arr[k] = e with a constant k stores through that k,
+	 *  and the value is evaluated first, with no temp 0 shuffle, when
+	 *  evaluating it cannot change arr or the index.
+	 * @param node LET
+	 */
+	private void writeLet(int node) {
+		int index = ir.c(node);
+		
+		vw.writeVM("\n// " + ir.text(node));
+		
+		if (index >= 0 && optimize && valueFirst(node)) {
+			writeExpression(ir.d(node));		// expression2
+			
+			if (isIndex(index)) {
+				writeThat(ir.a(node), ir.b(node));
+				
+				vw.writePop("that", ir.valueOf(index));
+				return;
+			}
+			
+			writePush(ir.a(node), ir.b(node));
+			
+			writeExpression(index);				// expression1
+			
+			vw.writeArithmetic("+");
+			
+			vw.writePop("pointer", 1);
+			
+			forgetThat();
+			
+			vw.writePop("that", 0);
+		}
+		else if (index >= 0) {
+			boolean constIndex = optimize && isIndex(index);
+			
+			writePush(ir.a(node), ir.b(node));
+			
+			if (!constIndex) {
+				writeExpression(index);			// expression1
+				
+				vw.writeArithmetic("+");
+			}
+			
+			writeExpression(ir.d(node));		// expression2
+			
+			vw.writePop("temp", 0);			// temp 0 = value of expression2
+			
+			vw.writePop("pointer", 1);		// store arr[expression1]
+			
+			vw.writePush("temp", 0);
+			
+			if (constIndex) {
+				// pointer 1 holds arr as it was before expression2, which a
+				// call in expression2 may have changed if arr is a static or field
+				if (ir.isPure(ir.d(node)) || isLocal(ir.a(node)))
+					setThat(ir.a(node), ir.b(node));
+				else
+					forgetThat();
+				
+				vw.writePop("that", ir.valueOf(index));
+			}
+			else {
+				forgetThat();
+				
+				vw.writePop("that", 0);
+			}
+		}
+		else {
+			writeExpression(ir.d(node));
+			
+			writePop(ir.a(node), ir.b(node));
+		}
+	}
+	
+	/** Can the value of let arr[i] = e be evaluated before arr and i?
+	 *  It can if neither e nor i has side effects, or if e cannot change
+	 *  arr and i: arr is a local or an argument and i reads only those,
+	 *  which no call can reach.
+	 * @param node LET with an index
+	 * @return boolean
+	 */
+	private boolean valueFirst(int node) {
+		if (ir.isPure(ir.d(node)) && ir.isPure(ir.c(node)))
+			return true;
+		return isLocal(ir.a(node)) && readsLocals(ir.c(node));
+	}
+	
+	/** Does the expression read only constants, locals and arguments,
+	 *  with no side effects?
+	 * @param node
+	 * @return boolean
+	 */
+	private boolean readsLocals(int node) {
+		switch (ir.kind(node)) {
+		case IRTree.INT : case IRTree.KEYWORD :
+			return true;					// this is restored after every call
+		case IRTree.VAR :
+			return isLocal(ir.a(node));
+		case IRTree.UNARY :
+			return readsLocals(ir.b(node));
+		case IRTree.BINARY :
+			return ir.a(node) != '/' && readsLocals(ir.b(node)) && readsLocals(ir.c(node));
+		default :
+			return false;
+		}
+	}
+	
+	private static boolean isLocal(int segment) {
+		return segment == IRTree.LOCAL || segment == IRTree.ARG;
+	}
+	
+	/** Is the node an index that can be used as the that segment index?
+	 * @param node
+	 * @return true for a constant 0..32767
+	 */
+	private boolean isIndex(int node) {
+		return ir.isConst(node) && ir.valueOf(node) >= 0;
+	}
+	
+	/** Points pointer 1 at the array held by a variable, unless it
+	 *  already points there
+	 * @param segment
+	 * @param index
+	 */
+	private void writeThat(int segment, int index) {
+		if (segment == thatSeg && index == thatIdx)
+			return;
+		
+		writePush(segment, index);
+		
+		vw.writePop("pointer", 1);
+		
+		setThat(segment, index);
+	}
+	
+	/** Records that pointer 1 holds the value of a variable.
+	 *  Only done under -O, where it is forgotten at every label, call,
+	 *  store to the variable, and other use of pointer 1.
+	 * @param segment
+	 * @param index
+	 */
+	private void setThat(int segment, int index) {
+		if (!optimize || segment == IRTree.NONE)
+			return;
+		thatSeg = segment;
+		thatIdx = index;
+	}
+	
+	private void forgetThat() {
+		thatSeg = IRTree.NONE;
+	}
+	
+	/** Writes a while statement.
+	 *  Under -O the loop is rotated: a guard skips the loop if the condition
+	 *  is false, and the test at the bottom jumps back while it is true,
+	 *  so an iteration takes one jump instead of two. The condition is
+	 *  still evaluated the same no. of times.
+	 * @param node WHILE
+	 */
+	private void writeWhile(int node) {
+		int LFalse = lblNo++;
+		int LTrue  = lblNo++;
+		
+		vw.writeVM("\n// " + ir.text(node));
+		
+		if (optimize) {
+			writeBranch(ir.a(node), false, "L" + LFalse);
+			
+			writeLabel("L" + LTrue);
+			
+			writeStatements(ir.b(node));
+			
+			writeBranch(ir.a(node), true, "L" + LTrue);
+			
+			writeLabel("L" + LFalse);
+			return;
+		}
+		
+		writeLabel("L" + LTrue);
+		
+		writeBranch(ir.a(node), false, "L" + LFalse);
+		
+		writeStatements(ir.b(node));
+		
+		vw.writeGoto("L" + LTrue);
+		
+		writeLabel("L" + LFalse);
+	}
+	
+	/** Writes an if statement, possibly with an else clause.
+	 *  Under -O an if without else has no goto over the empty else clause.
+	 * @param node IF
+	 */
+	private void writeIf(int node) {
+		int LFalse = lblNo++;
+		int LEnd   = lblNo++;
+		
+		vw.writeVM("\n// " + ir.text(node));
+		
+		writeBranch(ir.a(node), false, "L" + LFalse);
+		
+		writeStatements(ir.b(node));
+		
+		if (optimize && ir.c(node) < 0) {
+			writeLabel("L" + LFalse);
+			return;
+		}
+		
+		vw.writeGoto("L" + LEnd);
+		
+		writeLabel("L" + LFalse);
+		
+		writeStatements(ir.c(node));
+		
+		writeLabel("L" + LEnd);
+	}
+	
+	/** Writes a condition and the if-goto that branches on it.
+	 *  A comparison followed by if-goto, or by not and if-goto, is
+	 *  translated by the VM translator into a single compare-and-jump,
+	 *  so the condition is written without a boolean of its own.
+	 *  As in the plain build only -1 is true, so jumping if the condition
+	 *  is true tests for -1 unless the condition is a boolean.
+	 *  Under -O a ~ on a boolean is dropped by branching on the opposite
+	 *  sense, ~x of any other x is tested as x = 0, which also removes the
+	 *  double not of while (~x), and a constant condition becomes a goto
+	 *  or nothing.
+	 * @param node condition
+	 * @param sense true to jump if the condition is true, false to jump if it is false
+	 * @param label
+	 */
+	private void writeBranch(int node, boolean sense, String label) {
+		while (optimize && ir.kind(node) == IRTree.UNARY && ir.a(node) == '~' && ir.isBoolean(ir.b(node))) {
+			node  = ir.b(node);
+			sense = !sense;
+		}
+		
+		if (optimize && ir.isConst(node)) {
+			if ((ir.valueOf(node) == -1) == sense)
+				vw.writeGoto(label);
+			return;
+		}
+		
+		if (optimize && ir.kind(node) == IRTree.UNARY && ir.a(node) == '~') {
+			// ~x is -1 only if x is 0
+			writeExpression(ir.b(node));
+			
+			if (sense) {
+				vw.writePush("constant", 0);
+				vw.writeArithmetic("=");
+			}
+			
+			vw.writeIf(label);
+			return;
+		}
+		
+		writeExpression(node);
+		
+		if (!sense)
+			vw.writeArithmetic("~");	// not
+		else if (!ir.isBoolean(node)) {
+			vw.writeArithmetic("~");	// not x = 0, i.e. x = -1
+			vw.writePush("constant", 0);
+			vw.writeArithmetic("=");
+		}
+		
+		vw.writeIf(label);
+	}
+	
+	/** Writes an expression, leaving its value on the stack
+	 * @param node expression, -1 writes nothing
+	 */
+	private void writeExpression(int node) {
+		if (node < 0)
+			return;
+			
+		switch (ir.kind(node)) {
+		case IRTree.INT :
+			writeConst(ir.a(node));
+			break;
+			
+		case IRTree.STRING :
+			if (optimize)
+				writePooledString(ir.text(node));
+			else
+				writeString(ir.text(node));
+			break;
+			
+		case IRTree.KEYWORD :
+			switch (ir.a(node)) {
+			case JackTokenizer.TRUE :
+				vw.writePush("constant", 1);
+				vw.writeVM("neg");
+				break;
+			case JackTokenizer.FALSE : case JackTokenizer.NULL :
+				vw.writePush("constant", 0);
+				break;
+			case JackTokenizer.THIS :
+				vw.writePush("pointer", 0);
+				break;
+			}
+			break;
+			
+		case IRTree.VAR :
+			writePush(ir.a(node), ir.b(node));
+			break;
+			
+		case IRTree.INDEX :
+			if (optimize && isIndex(ir.c(node))) {
+				writeThat(ir.a(node), ir.b(node));
+				
+				vw.writePush("that", ir.valueOf(ir.c(node)));	// access arr[k]
+				break;
+			}
+			
+			writePush(ir.a(node), ir.b(node));
+			
+			writeExpression(ir.c(node));
+			
+			vw.writeArithmetic("+");
+			
+			vw.writePop("pointer", 1);		// set pointer 1 to (arr + value of expression)
+			
+			forgetThat();
+			
+			vw.writePush("that", 0);		// access array
+			break;
+			
+		case IRTree.UNARY :
+			writeExpression(ir.b(node));
+			
+			vw.writeArithmetic(ir.a(node) == '-' ? "u-" : "~");
+			break;
+			
+		case IRTree.BINARY :
+			if (optimize && ir.a(node) == '*' && writeMultiply(ir.b(node), ir.c(node)))
+				break;
+			
+			writeExpression(ir.b(node));
+			
+			writeExpression(ir.c(node));
+			
+			vw.writeArithmetic(String.valueOf((char) ir.a(node)));
+			break;
+			
+		case IRTree.CALL :
+			writeCall(node);
+			break;
+		}
+	}
+	
+	/** Writes a multiplication by a constant without calling Math.multiply.
+	 *  The other operand is multiplied by doubling and adding, or by its
+	 *  negation that way and then negated when that is shorter. Constants
+	 *  that take more than MAX_CHAIN commands are left to Math.multiply.
+	 * @param x
+	 * @param y
+	 * @return false if neither operand is a constant or the chain is too long
+	 */
+	private boolean writeMultiply(int x, int y) {
+		int c, u;
+		boolean negate = false;
+		
+		if (ir.isConst(y))
+			c = ir.valueOf(y);
+		else if (ir.isConst(x)) {
+			c = ir.valueOf(x);			// constant first: evaluating it has no effect, so swap
+			x = y;
+		}
+		else
+			return false;
+		
+		u = c & 0xFFFF;					// multiply is modulo 2^16, so c is taken unsigned
+		if (chainLength(-c & 0xFFFF) + 1 < chainLength(u)) {
+			u = -c & 0xFFFF;
+			negate = true;
+		}
+		
+		if (chainLength(u) > MAX_CHAIN)
+			return false;
+		
+		writeExpression(x);
+		
+		writeShiftAdd(u);
+		
+		if (negate)
+			vw.writeArithmetic("u-");
+		
+		return true;
+	}
+	
+	/** Returns the no. of VM commands writeShiftAdd() takes
+	 * @param u 0..65535
+	 * @return int
+	 */
+	private static int chainLength(int u) {
+		int top  = 31 - Integer.numberOfLeadingZeros(u);
+		int ones = Integer.bitCount(u);
+		
+		if (u <= 1)
+			return (u == 0) ? 2 : 0;
+		
+		return 4 * top + 2 * (ones - 1) + ((ones > 1) ? 2 : 0);
+	}
+	
+	/** Multiplies the value on top of the stack by u, scanning the bits of u
+	 *  from the top: the product is doubled for each bit, and x added for
+	 *  each 1 bit. x is kept in temp 1, the product is doubled through temp 2.
+	 * @param u 0..65535
+	 */
+	private void writeShiftAdd(int u) {
+		int top = 31 - Integer.numberOfLeadingZeros(u);
+		
+		if (u == 0) {
+			vw.writePop("temp", 1);
+			vw.writePush("constant", 0);
+			return;
+		}
+		
+		if (Integer.bitCount(u) > 1) {
+			vw.writePop("temp", 1);		// temp 1 = x
+			vw.writePush("temp", 1);
+		}
+		
+		for (int i = top - 1; i >= 0; i--) {
+			vw.writePop("temp", 2);		// double
+			vw.writePush("temp", 2);
+			vw.writePush("temp", 2);
+			vw.writeArithmetic("+");
+			
+			if ((u & (1 << i)) != 0) {
+				vw.writePush("temp", 1);	// add x
+				vw.writeArithmetic("+");
+			}
+		}
+	}
+	
+	/** Writes a subroutine call. The receiver, if any, is pushed as argument 0.
+	 * @param node CALL
+	 */
+	private void writeCall(int node) {
+		int nArgs = 0;
+		
+		if (ir.d(node) >= 0) {
+			writeExpression(ir.d(node));
+			nArgs++;
+		}
+		
+		for (int n = ir.c(node); n >= 0; n = ir.next(n)) {
+			writeExpression(n);
+			nArgs++;
+		}
+		
+		vw.writeCall(ir.a(node), ir.b(node), nArgs);
+		
+		forgetThat();
+	}
+	
+	/** Writes a string constant as a call to the OS constructor String.new(length)
+	 *  followed by a series of calls to String.appendChar(c)
+	 * @param s
+	 */
+	private void writeString(String s) {
+		int len = s.length();
+		
+		vw.writePush("constant", len);			// String.new(length)
+		
+		vw.writeCall("String.new", 1);
+		
+		for (int i = 0; i < len; i++) {
+			vw.writePush("constant", (int) s.charAt(i));
+			
+			vw.writeCall("String.appendChar", 2);
+		}
+	}
+	
+	/** Writes a string constant as a read of the class's string pool.
+	 *  The pool is an Array in static nStatics, built by the generated
+	 *  function className.$strings on the first use of any string constant
+	 *  of the class. Equal constants share one String object, so
+	 *  the program must not change or dispose of it.
+	 * @param s
+	 */
+	private void writePooledString(String s) {
+		int LReady = lblNo++;
+		Integer k  = pool.get(s);
+		
+		if (k == null) {
+			k = pool.size();
+			pool.put(s, k);
+		}
+		
+		vw.writePush("static", nStatics);
+		
+		vw.writeIf("L" + LReady);
+		
+		vw.writeCall(names.nameOf(className) + ".$strings", 0);
+		
+		vw.writePop("temp", 0);
+		
+		writeLabel("L" + LReady);
+		
+		writeThat(IRTree.STATIC, nStatics);		// pool[k]
+		
+		vw.writePush("that", k);
+	}
+	
+	/** Writes the function className.$strings that builds the string pool,
+	 *  if the class has pooled string constants. It is not a valid Jack name,
+	 *  so it cannot clash with the subroutines of the class.
+	 */
+	private void writeStringPool() {
+		if (pool.isEmpty())
+			return;
+		
+		vw.writeVM("\n// string pool");
+		
+		vw.writeFunction(names.nameOf(className) + ".$strings", 0);
+		
+		vw.writePush("constant", pool.size());
+		
+		vw.writeCall("Array.new", 1);
+		
+		vw.writePop("static", nStatics);
+		
+		for (Map.Entry<String, Integer> e : pool.entrySet()) {
+			vw.writePush("static", nStatics);
+			
+			vw.writePush("constant", e.getValue());
+			
+			vw.writeArithmetic("+");
+			
+			writeString(e.getKey());
+			
+			vw.writePop("temp", 0);			// temp 0 = the string
+			
+			vw.writePop("pointer", 1);		// store pool[k]
+			
+			vw.writePush("temp", 0);
+			
+			vw.writePop("that", 0);
+		}
+		
+		vw.writePush("constant", 0);
+		
+		vw.writeReturn();
+	}
+	
+	/** Pushes an integer constant. push constant takes 0..32767 only,
+	 *  so the negative values left by constant folding are negated.
+	 * @param value
+	 */
+	private void writeConst(int value) {
+		if (value == Short.MIN_VALUE) {
+			vw.writePush("constant", Short.MAX_VALUE);
+			vw.writeArithmetic("~");		// ~32767 = -32768
+		}
+		else if (value < 0) {
+			vw.writePush("constant", -value);
+			vw.writeArithmetic("u-");
+		}
+		else
+			vw.writePush("constant", value);
+	}
+	
+	/** Pushes a variable
+	 * @param segment
+	 * @param index
+	 */
+	private void writePush(int segment, int index) {
+		vw.writePush(IRTree.segmentName(segment), index);
+	}
+	
+	/** Pops into a variable
+	 * @param segment
+	 * @param index
+	 */
+	private void writePop(int segment, int index) {
+		vw.writePop(IRTree.segmentName(segment), index);
+		
+		if (segment == thatSeg && index == thatIdx)
+			forgetThat();
+	}
+	
+	/** Writes a label. Pointer 1 is not known where jumps join.
+	 * @param label
+	 */
+	private void writeLabel(String label) {
+		vw.writeLabel(label);
+		
+		forgetThat();
+	}
+}
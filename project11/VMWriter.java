@@ -1,13 +1,27 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 
 public class VMWriter {
 	private FileWriter fw 		= null;
+	private NameTable names		= null;
+	private int count			= 0;		// no. of VM commands written, comments excluded
+	private PrintStream out		= System.out;	// where I/O errors are reported
 	
 	/** Creates a new output .vm file and prepares it for writing.
+	 *  Class and subroutine name ids are resolved through the given name table.
 	 */
-	public VMWriter(String path) {
+	public VMWriter(String path, NameTable names) {
+		this(path, names, System.out);
+	}
+	
+	/** Creates a new output .vm file that reports I/O errors to the given stream
+	 */
+	public VMWriter(String path, NameTable names, PrintStream out) {
+		
+		this.names = names;
+		this.out = out;
 		
 		File fl = new File(path.substring(0, path.lastIndexOf(".")) + ".vm");
 		
@@ -15,10 +29,24 @@ public class VMWriter {
 			fw = new FileWriter(fl);
 			
 		} catch (IOException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 	
+	/** Creates a VM writer that only counts the commands, without writing them.
+	 *  Used to measure the code generated for parts of the IR.
+	 */
+	public VMWriter(NameTable names) {
+		this.names = names;
+	}
+	
+	/** Returns the no. of VM commands written so far, comments excluded
+	 * @return int
+	 */
+	public int count() {
+		return count;
+	}
+	
 	/** Writes a VM push command. 
 	 *  Segment: ARG, LOCAL, STATIC, THIS, THAT, POINTER, TEMP
 	 * @param segment
@@ -123,6 +151,15 @@ public class VMWriter {
 		writeVM("call " + name + " " + String.valueOf(nArgs));
 	}
 	
+	/** Writes a VM call command for className.subName
+	 * @param className id
+	 * @param subName id
+	 * @param nArgs
+	 */
+	public void writeCall(int className, int subName, int nArgs) {
+		writeCall(names.nameOf(className) + "." + names.nameOf(subName), nArgs);
+	}
+	
 	/** Writes a VM function command.
 	 * @param name
 	 * @param nLocals
@@ -131,6 +168,15 @@ public class VMWriter {
 		writeVM("function " + name + " " + String.valueOf(nLocals));
 	}
 	
+	/** Writes a VM function command for className.subName
+	 * @param className id
+	 * @param subName id
+	 * @param nLocals
+	 */
+	public void writeFunction(int className, int subName, int nLocals) {
+		writeFunction(names.nameOf(className) + "." + names.nameOf(subName), nLocals);
+	}
+	
 	/** Writes a VM return command.
 	 */
 	public void writeReturn() {
@@ -140,21 +186,30 @@ public class VMWriter {
 	/** Closes the output file
 	 */
 	public void close() {
+		if (fw == null)
+			return;
+		
 		try {
 			fw.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 	
 	/** Writes the VM command to output file
 	 */
 	public void writeVM(String cmd) {
+		if (!cmd.startsWith("\n") && !cmd.startsWith("//"))
+			count++;
+		
+		if (fw == null)
+			return;
+		
 		try {
 			fw.write(cmd + '\n');
 		} catch (IOException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
 		}
 	}
 	